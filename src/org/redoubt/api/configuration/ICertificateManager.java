@@ -10,4 +10,9 @@ public interface ICertificateManager {
     PrivateKey getPrivateKey(String alias, char[] password);
     boolean checkCertificateValidity(X509Certificate cert) throws Exception;
     boolean isSelfSigned(X509Certificate cert) throws Exception;
+    
+    /**
+     * @return the keys and certificates as they are loaded now, unaffected by a later reload
+     */
+    ICertificateManager getSnapshot();
 }
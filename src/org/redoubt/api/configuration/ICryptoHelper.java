@@ -1,18 +1,28 @@
 package org.redoubt.api.configuration;
 
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 
 import javax.mail.internet.MimeBodyPart;
 
+import org.redoubt.util.MicOutputStream;
+
 public interface ICryptoHelper {
     static final String DIGEST_MD5 = "md5";
     static final String DIGEST_SHA1 = "sha1";
+    static final String DIGEST_SHA256 = "sha256";
+    static final String DIGEST_SHA384 = "sha384";
+    static final String DIGEST_SHA512 = "sha512";
     static final String CRYPT_CAST5 = "cast5";
     static final String CRYPT_3DES = "3des";
     static final String CRYPT_IDEA = "idea";
     static final String CRYPT_RC2 = "rc2";
+    static final String CRYPT_AES128 = "aes128";
+    static final String CRYPT_AES256 = "aes256";
+    static final String CRYPT_AES128_GCM = "aes128-gcm";
+    static final String CRYPT_AES256_GCM = "aes256-gcm";
     static final String COMPRESS_ZLIB = "zlib";
     
     void init();
@@ -26,16 +36,58 @@ public interface ICryptoHelper {
     boolean isCompressed(MimeBodyPart part) throws Exception;
 
     String calculateMIC(Path file, String digestAlg) throws Exception;
+    
+    /**
+     * Resolves a digest as it is named in a micalg parameter, e.g. "sha-256" or "SHA256".
+     * @return the name of the digest as the crypto helper expects it, or null if it isn't supported
+     */
+    String resolveDigestAlgorithm(String name);
+
+    /**
+     * @return the name of the digest in a micalg parameter, e.g. "sha-256" for "sha256"
+     */
+    String getMicalgParameter(String digestAlg) throws Exception;
+
+    /**
+     * @param out the stream the digested data is passed on to, may be null
+     */
+    MicOutputStream createMICStream(OutputStream out, String digestAlg) throws Exception;
 
     MimeBodyPart decrypt(MimeBodyPart part, X509Certificate cert, PrivateKey key) throws Exception;
 
+    /**
+     * Same as {@link #decrypt(MimeBodyPart, X509Certificate, PrivateKey)}, but the decrypted
+     * content is streamed to the target file, which backs the returned part.
+     */
+    MimeBodyPart decrypt(MimeBodyPart part, X509Certificate cert, PrivateKey key, Path target) throws Exception;
+
     MimeBodyPart encrypt(MimeBodyPart part, X509Certificate cert, String algorithm) throws Exception;
     
     MimeBodyPart sign(MimeBodyPart part, X509Certificate cert, PrivateKey key, String digest) throws Exception;
 
     MimeBodyPart verify(MimeBodyPart part, X509Certificate cert) throws Exception;
+
+    /**
+     * Same as {@link #verify(MimeBodyPart, X509Certificate)}, but the signed content is
+     * buffered in the backing file instead of in memory. If the options request a MIC, it
+     * is taken from the signature when the signer used the same digest algorithm.
+     */
+    MimeBodyPart verify(MimeBodyPart part, X509Certificate cert, Path backingFile, SecurityOptions options) throws Exception;
     
     MimeBodyPart compress(MimeBodyPart part, String alg) throws Exception;
     
     MimeBodyPart decompress(MimeBodyPart part) throws Exception;
+
+    /**
+     * Same as {@link #decompress(MimeBodyPart)}, but the decompressed content is streamed
+     * to the target file, which backs the returned part.
+     */
+    MimeBodyPart decompress(MimeBodyPart part, Path target) throws Exception;
+
+    /**
+     * Compresses, signs and encrypts the part, as requested by the options, in a single
+     * pass. The result is written to the target file and the returned part is backed by it.
+     * If requested, the MIC is calculated along the way and stored in the options.
+     */
+    MimeBodyPart secure(MimeBodyPart part, Path target, SecurityOptions options) throws Exception;
 }
\ No newline at end of file
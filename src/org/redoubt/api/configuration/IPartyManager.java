@@ -1,10 +1,12 @@
 package org.redoubt.api.configuration;
 
 import org.redoubt.application.configuration.Party;
+import org.redoubt.application.configuration.PartyProfile;
 
 public interface IPartyManager {
 	void loadParties();
 	Party getPartyById(String partyId);
+	PartyProfile getProfileById(String partyId);
 	void addParty(IParty party);
 	void deleteParty(String id);
 }
@@ -15,4 +15,16 @@ public interface IServerConfigurationManager {
     Path getTruststoreFile();
     String getTruststorePassword();
     long getAs2MaxFileSizeMB();
+    boolean useVirtualThreads();
+    int getAsyncMdnThreads();
+    int getAsyncMdnMaxAttempts();
+    long getAsyncMdnRetryDelaySeconds();
+    int getAsyncMdnMaxPerDestination();
+    Path getMdnOutboxFolder();
+    long getMdnMonitorExpiryMinutes();
+    int getMdnMonitorMaxMessages();
+    String getMdnMonitorType();
+    Path getMdnMonitorFolder();
+    Path getMdnPendingFolder();
+    Path getMdnFailureFolder();
 }
@@ -0,0 +1,103 @@
+package org.redoubt.api.configuration;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+/**
+ * Describes the layers that {@link ICryptoHelper#secure} applies to a MIME part in a
+ * single pass. A layer is applied only when its algorithm is set. The MIC, if requested,
+ * is collected while the part is processed.
+ */
+public class SecurityOptions {
+	private String compressionAlgorithm;
+	private X509Certificate signCertificate;
+	private PrivateKey signKey;
+	private String signDigestAlgorithm;
+	private X509Certificate encryptCertificate;
+	private String encryptAlgorithm;
+	private String micAlgorithm;
+	private String mic;
+
+	public boolean isCompress() {
+		return compressionAlgorithm != null;
+	}
+
+	public boolean isSign() {
+		return signDigestAlgorithm != null;
+	}
+
+	public boolean isEncrypt() {
+		return encryptAlgorithm != null;
+	}
+
+	public boolean isMicRequested() {
+		return micAlgorithm != null;
+	}
+
+	public String getCompressionAlgorithm() {
+		return compressionAlgorithm;
+	}
+
+	public void setCompressionAlgorithm(String compressionAlgorithm) {
+		this.compressionAlgorithm = compressionAlgorithm;
+	}
+
+	public X509Certificate getSignCertificate() {
+		return signCertificate;
+	}
+
+	public void setSignCertificate(X509Certificate signCertificate) {
+		this.signCertificate = signCertificate;
+	}
+
+	public PrivateKey getSignKey() {
+		return signKey;
+	}
+
+	public void setSignKey(PrivateKey signKey) {
+		this.signKey = signKey;
+	}
+
+	public String getSignDigestAlgorithm() {
+		return signDigestAlgorithm;
+	}
+
+	public void setSignDigestAlgorithm(String signDigestAlgorithm) {
+		this.signDigestAlgorithm = signDigestAlgorithm;
+	}
+
+	public X509Certificate getEncryptCertificate() {
+		return encryptCertificate;
+	}
+
+	public void setEncryptCertificate(X509Certificate encryptCertificate) {
+		this.encryptCertificate = encryptCertificate;
+	}
+
+	public String getEncryptAlgorithm() {
+		return encryptAlgorithm;
+	}
+
+	public void setEncryptAlgorithm(String encryptAlgorithm) {
+		this.encryptAlgorithm = encryptAlgorithm;
+	}
+
+	public String getMicAlgorithm() {
+		return micAlgorithm;
+	}
+
+	public void setMicAlgorithm(String micAlgorithm) {
+		this.micAlgorithm = micAlgorithm;
+	}
+
+	/**
+	 * @return the MIC calculated while the layers were written, if one was requested
+	 */
+	public String getMic() {
+		return mic;
+	}
+
+	public void setMic(String mic) {
+		this.mic = mic;
+	}
+}
@@ -24,6 +24,7 @@ import org.redoubt.protocol.as2.As2HttpListener;
 import org.redoubt.protocol.as2.As2Protocol;
 import org.redoubt.protocol.as2.As2ProtocolSettings;
 import org.redoubt.protocol.as2.mdn.As2InMemoryMdnMonitor;
+import org.redoubt.protocol.as2.mdn.As2PersistentMdnMonitor;
 import org.redoubt.protocol.none.NoneProtocol;
 import org.redoubt.protocol.none.NoneProtocolSettings;
 import org.redoubt.transport.SettingsHolder;
@@ -34,13 +35,13 @@ import org.redoubt.transport.http.HttpTransport;
 import org.redoubt.transport.http.HttpTransportSettings;
 
 public class Factory {
-	private static Factory sInstance;
-	private static IProtocolManager sProtocolManager;
-	private static IServerConfigurationManager sServerConfigurationManager;
-	private static ICertificateManager sCertificateManager;
-	private static ICryptoHelper sCryptoHelper;
-	private static IPartyManager sPartyManager;
-	private static IMdnMonitor sMdnMonitor;
+	private static volatile Factory sInstance;
+	private static volatile IProtocolManager sProtocolManager;
+	private static volatile IServerConfigurationManager sServerConfigurationManager;
+	private static volatile ICertificateManager sCertificateManager;
+	private static volatile ICryptoHelper sCryptoHelper;
+	private static volatile IPartyManager sPartyManager;
+	private static volatile IMdnMonitor sMdnMonitor;
 	private static final Object SINGLETON_LOCK = new Object();
 	
 	private static final Logger sLogger = Logger.getLogger(Factory.class);
@@ -62,18 +63,22 @@ public class Factory {
 	}
 	
 	public IMdnMonitor getMdnMonitor() {
-		return getMdnMonitor(FactoryConstants.AS2_MDN_MONITOR_IN_MEMORY);
+		return getMdnMonitor(getServerConfigurationManager().getMdnMonitorType());
 	}
 	
 	public IMdnMonitor getMdnMonitor(String type) {
 		if(sMdnMonitor == null) {
             synchronized(SINGLETON_LOCK) {
                 if(sMdnMonitor == null) {
+                	IMdnMonitor instance = null;
                 	sLogger.info("Initializing MdnMonitor instance...");
                     
                     if(FactoryConstants.AS2_MDN_MONITOR_IN_MEMORY.equals(type)) {
-                    	sMdnMonitor = new As2InMemoryMdnMonitor();
+                    	instance = new As2InMemoryMdnMonitor();
+                    } else if(FactoryConstants.AS2_MDN_MONITOR_PERSISTENT.equals(type)) {
+                    	instance = new As2PersistentMdnMonitor();
                     }
+                	sMdnMonitor = instance;
                     
                     sLogger.info("MdnMonitor instance successfully initialized. Type is [" + type + "].");
                 }
@@ -91,13 +96,15 @@ public class Factory {
 		if(sPartyManager == null) {
             synchronized(SINGLETON_LOCK) {
                 if(sPartyManager == null) {
+                	IPartyManager instance = null;
                 	sLogger.info("Initializing PartyManager instance...");
                     
                     if(FactoryConstants.PARTY_MANAGER_XML.equals(type)) {
-                    	sPartyManager = new XmlPartyManager();
+                    	instance = new XmlPartyManager();
                     }
                     
-                    sPartyManager.loadParties();
+                    instance.loadParties();
+                	sPartyManager = instance;
                     
                     sLogger.info("PartyManager instance successfully initialized. Type is [" + type + "].");
                 }
@@ -115,13 +122,15 @@ public class Factory {
 		if(sCryptoHelper == null) {
             synchronized(SINGLETON_LOCK) {
                 if(sCryptoHelper == null) {
+                	ICryptoHelper instance = null;
                 	sLogger.info("Initializing CryptoHelper instance...");
                     
                     if(FactoryConstants.CRYPTO_HELPER_BC.equals(type)) {
-                    	sCryptoHelper = new BCCryptoHelper();
+                    	instance = new BCCryptoHelper();
                     }
                     
-                    sCryptoHelper.init();
+                    instance.init();
+                	sCryptoHelper = instance;
                     
                     sLogger.info("CryptoHelper instance successfully initialized. Type is [" + type + "].");
                 }
@@ -139,13 +148,15 @@ public class Factory {
 	    if(sCertificateManager == null) {
             synchronized(SINGLETON_LOCK) {
                 if(sCertificateManager == null) {
+                    ICertificateManager instance = null;
                     sLogger.info("Initializing CertificateManager instance...");
                     
                     if(FactoryConstants.CERTIFICATE_MANAGER_JKS.equals(type)) {
-                        sCertificateManager = new JksCertificateManager();
+                        instance = new JksCertificateManager();
                     }
                     
-                    sCertificateManager.init();
+                    instance.init();
+                    sCertificateManager = instance;
                     
                     sLogger.info("CertificateManager instance successfully initialized. Type is [" + type + "].");
                 }
@@ -163,13 +174,15 @@ public class Factory {
 		if(sProtocolManager == null) {
 			synchronized(SINGLETON_LOCK) {
 				if(sProtocolManager == null) {
+					IProtocolManager instance = null;
 					sLogger.info("Initializing ProtocolManager instance...");
 					
 					if(FactoryConstants.PROTOCOL_MANAGER_XML.equals(type)) {
-						sProtocolManager = new XmlProtocolManager();
+						instance = new XmlProtocolManager();
 					}
 					
-					sProtocolManager.loadTransports();
+					instance.loadTransports();
+					sProtocolManager = instance;
 					
 					sLogger.info("ProtocolManager instance successfully initialized. Type is [" + type + "].");
 				}
@@ -187,13 +200,15 @@ public class Factory {
         if(sServerConfigurationManager == null) {
             synchronized(SINGLETON_LOCK) {
                 if(sServerConfigurationManager == null) {
+                    IServerConfigurationManager instance = null;
                     sLogger.info("Initializing ServerConfigurationManager instance...");
                     
                     if(FactoryConstants.SERVER_CONFIGURATION_MANAGER_XML.equals(type)) {
-                        sServerConfigurationManager = new XmlConfigurationManager();
+                        instance = new XmlConfigurationManager();
                     }
                     
-                    sServerConfigurationManager.loadConfiguration();
+                    instance.loadConfiguration();
+                    sServerConfigurationManager = instance;
                     
                     sLogger.info("ServerConfigurationManager instance successfully initialized. Type is [" + type + "].");
                 }
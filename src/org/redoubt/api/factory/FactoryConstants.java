@@ -13,5 +13,7 @@ public class FactoryConstants {
 	
 	public static final String AS2_MDN_MONITOR_IN_MEMORY = "as2inmemory";
 	
+	public static final String AS2_MDN_MONITOR_PERSISTENT = "as2persistent";
+	
 	public static final String PARTY_TYPE_BASE = "base";
 }
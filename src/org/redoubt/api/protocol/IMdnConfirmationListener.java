@@ -0,0 +1,8 @@
+package org.redoubt.api.protocol;
+
+/**
+ * Told by the {@link IMdnMonitor} about every message confirmed with an MDN.
+ */
+public interface IMdnConfirmationListener {
+	void messageConfirmed(String messageId);
+}
@@ -1,8 +1,18 @@
 package org.redoubt.api.protocol;
 
+/**
+ * Keeps track of the sent messages that await an MDN. Messages are identified by their
+ * Message-ID, which the MDN carries as Original-Message-ID.
+ */
 public interface IMdnMonitor {
-	void registerMessage(String uniqueId, IMessage message);
-	boolean isMessageRegistered(String uniqueId);
-	IMessage getMessage(String uniqueId);
-	void confirmAndDeregisterMessage(String uniqueId);
+	void registerMessage(MonitoredMessage message);
+	boolean isMessageRegistered(String messageId);
+	MonitoredMessage getMessage(String messageId);
+	void confirmAndDeregisterMessage(String messageId);
+	/**
+	 * Stops monitoring a message without it having been confirmed, e.g. because it has
+	 * been sent again under a new Message-ID.
+	 */
+	void deregisterMessage(String messageId);
+	void addConfirmationListener(IMdnConfirmationListener listener);
 }
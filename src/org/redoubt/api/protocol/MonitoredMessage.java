@@ -0,0 +1,43 @@
+package org.redoubt.api.protocol;
+
+/**
+ * What an {@link IMdnMonitor} remembers about a message that awaits its MDN.
+ */
+public class MonitoredMessage {
+	private final String messageId;
+	private final String mic;
+	private final String messageDate;
+	private final String partner;
+	private final long registered;
+
+	public MonitoredMessage(String messageId, String mic, String messageDate, String partner, long registered) {
+		this.messageId = messageId;
+		this.mic = mic;
+		this.messageDate = messageDate;
+		this.partner = partner;
+		this.registered = registered;
+	}
+
+	public String getMessageId() {
+		return messageId;
+	}
+
+	public String getMic() {
+		return mic;
+	}
+
+	public String getMessageDate() {
+		return messageDate;
+	}
+
+	public String getPartner() {
+		return partner;
+	}
+
+	/**
+	 * @return when the message was registered, in milliseconds since the epoch
+	 */
+	public long getRegistered() {
+		return registered;
+	}
+}
@@ -1,10 +1,15 @@
 package org.redoubt.application;
 
+import java.io.IOException;
+
 import org.apache.log4j.Logger;
 import org.redoubt.api.configuration.IServerConfigurationManager;
 import org.redoubt.api.factory.Factory;
 import org.redoubt.api.protocol.IProtocolManager;
 import org.redoubt.application.logging.LoggingUtils;
+import org.redoubt.protocol.as2.HttpClientUtils;
+import org.redoubt.protocol.as2.mdn.AsynchronousMdnScheduler;
+import org.redoubt.protocol.as2.mdn.MdnTimeoutSweeper;
 
 public class Application {
 	private static final Logger sLogger = Logger.getLogger(Application.class);
@@ -18,6 +23,13 @@ public class Application {
 
 		IProtocolManager protocolManager = Factory.getInstance().getProtocolManager();
 		
+		try {
+			AsynchronousMdnScheduler.start();
+		} catch (IOException e) {
+			sLogger.error("Unable to open the MDN outbox, asynchronous MDNs can't be sent. " + e.getMessage(), e);
+		}
+		MdnTimeoutSweeper.start();
+		
 		protocolManager.startTransports();
 		
 		ShutdownHook shutdownHook = new ShutdownHook(configurationManager.getShutDownPort());
@@ -33,6 +45,9 @@ public class Application {
 		}
 		
 		protocolManager.stopTransports();
+		MdnTimeoutSweeper.shutdown();
+		AsynchronousMdnScheduler.shutdown();
+		HttpClientUtils.shutdown();
 		sLogger.info("All transports have been stopped. Server shutdown complete.");
 	}
 
@@ -9,6 +9,7 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.redoubt.api.configuration.IServerConfigurationManager;
+import org.redoubt.api.factory.FactoryConstants;
 
 public abstract class BaseConfigurationManager implements IServerConfigurationManager {
     private static final Logger sLogger = Logger.getLogger(BaseConfigurationManager.class);
@@ -98,5 +99,88 @@ public abstract class BaseConfigurationManager implements IServerConfigurationMa
 	public long getAs2MaxFileSizeMB() {
 		return Long.parseLong(getConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_AS2_MAX_FILE_SIZE_MB));
 	}
+    
+    @Override
+    public boolean useVirtualThreads() {
+        String virtualThreads = getConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_VIRTUAL_THREADS);
+        return "true".equalsIgnoreCase(virtualThreads);
+    }
+    
+    @Override
+    public int getAsyncMdnThreads() {
+        return getIntConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_ASYNC_MDN_THREADS, 4);
+    }
+    
+    @Override
+    public int getAsyncMdnMaxAttempts() {
+        return getIntConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_ASYNC_MDN_MAX_ATTEMPTS, 5);
+    }
+    
+    @Override
+    public long getAsyncMdnRetryDelaySeconds() {
+        return getIntConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_ASYNC_MDN_RETRY_DELAY_SECONDS, 30);
+    }
+    
+    @Override
+    public int getAsyncMdnMaxPerDestination() {
+        return getIntConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_ASYNC_MDN_MAX_PER_DESTINATION, 2);
+    }
+    
+    @Override
+    public Path getMdnOutboxFolder() {
+        String outboxFolder = getConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_MDN_OUTBOX_FOLDER);
+        if(outboxFolder == null) {
+            return Paths.get(getWorkFolder().toString(), "outbox");
+        }
+        return Paths.get(outboxFolder);
+    }
+    
+    @Override
+    public long getMdnMonitorExpiryMinutes() {
+        return getIntConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_MDN_MONITOR_EXPIRY_MINUTES, 24 * 60);
+    }
+    
+    @Override
+    public int getMdnMonitorMaxMessages() {
+        return getIntConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_MDN_MONITOR_MAX_MESSAGES, 100000);
+    }
+    
+    @Override
+    public String getMdnMonitorType() {
+        String type = getConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_MDN_MONITOR);
+        return type == null ? FactoryConstants.AS2_MDN_MONITOR_IN_MEMORY : type;
+    }
+    
+    @Override
+    public Path getMdnMonitorFolder() {
+        String monitorFolder = getConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_MDN_MONITOR_FOLDER);
+        if(monitorFolder == null) {
+            return Paths.get(getWorkFolder().toString(), "monitor");
+        }
+        return Paths.get(monitorFolder);
+    }
+    
+    @Override
+    public Path getMdnPendingFolder() {
+        String pendingFolder = getConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_MDN_PENDING_FOLDER);
+        if(pendingFolder == null) {
+            return Paths.get(getWorkFolder().toString(), "pending");
+        }
+        return Paths.get(pendingFolder);
+    }
+    
+    @Override
+    public Path getMdnFailureFolder() {
+        String failureFolder = getConfigurationOption(ConfigurationConstants.CONFIGURATION_OPTION_MDN_FAILURE_FOLDER);
+        if(failureFolder == null) {
+            return Paths.get(getWorkFolder().toString(), "failed");
+        }
+        return Paths.get(failureFolder);
+    }
+    
+    private int getIntConfigurationOption(String name, int defaultValue) {
+        String value = getConfigurationOption(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
 
 }
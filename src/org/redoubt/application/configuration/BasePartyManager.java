@@ -8,9 +8,12 @@ import org.redoubt.api.configuration.IPartyManager;
 
 public abstract class BasePartyManager implements IPartyManager {
 	Map<String, IParty> parties;
+	/* Compiled when a party is added, so messages don't parse the settings */
+	Map<String, PartyProfile> profiles;
 	
 	public BasePartyManager() {
 		parties = new HashMap<String, IParty>();
+		profiles = new HashMap<String, PartyProfile>();
 	}
 	
 	@Override
@@ -20,11 +23,18 @@ public abstract class BasePartyManager implements IPartyManager {
 		return (Party) parties.get(partyId);
 	}
 	
+	public PartyProfile getProfileById(String partyId) {
+		return profiles.get(partyId);
+	}
+	
 	public void addParty(IParty party) {
+		PartyProfile profile = new PartyProfile((Party) party);
 		parties.put(party.getPartyId(), party);
+		profiles.put(party.getPartyId(), profile);
 	}
 	
 	public void deleteParty(String id) {
 		parties.remove(id);
+		profiles.remove(id);
 	}
 }
@@ -18,6 +18,18 @@ public class ConfigurationConstants {
     public static final String CONFIGURATION_OPTION_TRUSTSTORE_FILE = "TruststoreFile";
     public static final String CONFIGURATION_OPTION_TRUSTSTORE_PASSWORD = "TruststorePassword";
     public static final String CONFIGURATION_OPTION_AS2_MAX_FILE_SIZE_MB = "As2MaxFileSizeMB";
+    public static final String CONFIGURATION_OPTION_VIRTUAL_THREADS = "VirtualThreads";
+    public static final String CONFIGURATION_OPTION_ASYNC_MDN_THREADS = "AsyncMdnThreads";
+    public static final String CONFIGURATION_OPTION_ASYNC_MDN_MAX_ATTEMPTS = "AsyncMdnMaxAttempts";
+    public static final String CONFIGURATION_OPTION_ASYNC_MDN_RETRY_DELAY_SECONDS = "AsyncMdnRetryDelaySeconds";
+    public static final String CONFIGURATION_OPTION_ASYNC_MDN_MAX_PER_DESTINATION = "AsyncMdnMaxPerDestination";
+    public static final String CONFIGURATION_OPTION_MDN_OUTBOX_FOLDER = "MdnOutboxFolder";
+    public static final String CONFIGURATION_OPTION_MDN_MONITOR_EXPIRY_MINUTES = "MdnMonitorExpiryMinutes";
+    public static final String CONFIGURATION_OPTION_MDN_MONITOR_MAX_MESSAGES = "MdnMonitorMaxMessages";
+    public static final String CONFIGURATION_OPTION_MDN_MONITOR = "MdnMonitor";
+    public static final String CONFIGURATION_OPTION_MDN_MONITOR_FOLDER = "MdnMonitorFolder";
+    public static final String CONFIGURATION_OPTION_MDN_PENDING_FOLDER = "MdnPendingFolder";
+    public static final String CONFIGURATION_OPTION_MDN_FAILURE_FOLDER = "MdnFailureFolder";
     
     public static final String SHUTDOWN_COMMAND = "shutdown";
     
@@ -28,4 +40,5 @@ public class ConfigurationConstants {
     public static final String MDN_TYPE_ASYNCHRONOUS = "asynchronous";
     
     public static final long MDN_ASYNCHRONOUS_DELAY = 3 * 1000;
+    public static final long MDN_ASYNCHRONOUS_MAX_RETRY_DELAY = 30 * 60 * 1000;
 }
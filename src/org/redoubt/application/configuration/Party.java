@@ -24,6 +24,8 @@ public class Party extends HashMap<String, Object> implements IParty {
 		put(PartySettingsKeyring.MDN_TYPE, "synhronous");
 		put(PartySettingsKeyring.REQUEST_SIGNED_MDN, "false");
 		put(PartySettingsKeyring.MDN_SIGNING_ALGORITHM, "sha1");
+		put(PartySettingsKeyring.MDN_TIMEOUT_SECONDS, "0");
+		put(PartySettingsKeyring.MDN_RESEND_ATTEMPTS, "0");
 	}
 	
 	@Override
@@ -155,6 +157,25 @@ public class Party extends HashMap<String, Object> implements IParty {
     public void setMdnSigningAlgorithm(String mdnSigningAlgorithm) {
         put(PartySettingsKeyring.MDN_SIGNING_ALGORITHM, mdnSigningAlgorithm);
     }
+    
+    /**
+     * @return how long to wait for an asynchronous MDN before the message is sent again, 0 to wait indefinitely
+     */
+    public long getMdnTimeoutSeconds() {
+    	return Long.parseLong(((String) get(PartySettingsKeyring.MDN_TIMEOUT_SECONDS)).trim());
+    }
+    
+    public void setMdnTimeoutSeconds(long mdnTimeoutSeconds) {
+    	put(PartySettingsKeyring.MDN_TIMEOUT_SECONDS, Long.toString(mdnTimeoutSeconds));
+    }
+    
+    public int getMdnResendAttempts() {
+    	return Integer.parseInt(((String) get(PartySettingsKeyring.MDN_RESEND_ATTEMPTS)).trim());
+    }
+    
+    public void setMdnResendAttempts(int mdnResendAttempts) {
+    	put(PartySettingsKeyring.MDN_RESEND_ATTEMPTS, Integer.toString(mdnResendAttempts));
+    }
 
 	public class PartySettingsKeyring {
         public static final String SIGN_CERT_ALIAS = "signCertAlias";
@@ -173,6 +194,8 @@ public class Party extends HashMap<String, Object> implements IParty {
 	    public static final String ASYNCHRONOUS_MDN_URL = "asynchronousMdnUrl";
 	    public static final String REQUEST_SIGNED_MDN = "requestSignedMdn";
 	    public static final String MDN_SIGNING_ALGORITHM = "mdnSigningAlgorithm";
+	    public static final String MDN_TIMEOUT_SECONDS = "mdnTimeoutSeconds";
+	    public static final String MDN_RESEND_ATTEMPTS = "mdnResendAttempts";
     }
 	
 }
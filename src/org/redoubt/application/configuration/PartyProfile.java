@@ -0,0 +1,133 @@
+package org.redoubt.application.configuration;
+
+import java.util.Locale;
+
+/**
+ * The settings of a {@link Party} as messages use them - parsed once when the party is
+ * loaded, so packaging a message doesn't go through the settings map. Algorithm names
+ * are trimmed and lower-cased, digest names lose their dashes. Keys and certificates
+ * are not part of the profile, they are looked up by alias in the certificate manager,
+ * which can reload them.
+ */
+public final class PartyProfile {
+	private final String partyId;
+	private final boolean sign;
+	private final String signCertAlias;
+	private final String signCertKeyPassword;
+	private final String signDigestAlgorithm;
+	private final boolean encrypt;
+	private final String encryptCertAlias;
+	private final String encryptCertKeyPassword;
+	private final String encryptAlgorithm;
+	private final boolean compress;
+	private final String compressionAlgorithm;
+	private final boolean requestMdn;
+	private final String mdnType;
+	private final String asynchronousMdnUrl;
+	private final boolean requestSignedMdn;
+	private final String mdnSigningAlgorithm;
+	private final long mdnTimeoutSeconds;
+	private final int mdnResendAttempts;
+
+	public PartyProfile(Party party) {
+		partyId = party.getPartyId();
+		sign = party.isSigningEnabled();
+		signCertAlias = party.getSignCertAlias();
+		signCertKeyPassword = party.getSignCertKeyPassword();
+		signDigestAlgorithm = normalizeDigest(party.getSignDigestAlgorithm());
+		encrypt = party.isEncryptionEnabled();
+		encryptCertAlias = party.getEncryptCertAlias();
+		encryptCertKeyPassword = party.getEncryptCertKeyPassword();
+		encryptAlgorithm = normalize(party.getEncryptAlgorithm());
+		compress = party.isCompressionEnabled();
+		compressionAlgorithm = normalize(party.getCompressionAlgorithm());
+		requestMdn = party.isRequestMdn();
+		mdnType = normalize(party.getMdnType());
+		asynchronousMdnUrl = party.getAsynchronousMdnUrl() == null ? null : party.getAsynchronousMdnUrl().trim();
+		requestSignedMdn = party.isRequestSignedMdn();
+		mdnSigningAlgorithm = normalizeDigest(party.getMdnSigningAlgorithm());
+		mdnTimeoutSeconds = party.getMdnTimeoutSeconds();
+		mdnResendAttempts = party.getMdnResendAttempts();
+	}
+
+	private static String normalize(String value) {
+		return value == null ? null : value.trim().toLowerCase(Locale.ROOT);
+	}
+	
+	/* Digests are also written with a dash, as in "sha-256" */
+	private static String normalizeDigest(String value) {
+		return value == null ? null : normalize(value).replace("-", "");
+	}
+
+	public String getPartyId() {
+		return partyId;
+	}
+
+	public boolean isSigningEnabled() {
+		return sign;
+	}
+
+	public String getSignCertAlias() {
+		return signCertAlias;
+	}
+
+	public String getSignCertKeyPassword() {
+		return signCertKeyPassword;
+	}
+
+	public String getSignDigestAlgorithm() {
+		return signDigestAlgorithm;
+	}
+
+	public boolean isEncryptionEnabled() {
+		return encrypt;
+	}
+
+	public String getEncryptCertAlias() {
+		return encryptCertAlias;
+	}
+
+	public String getEncryptCertKeyPassword() {
+		return encryptCertKeyPassword;
+	}
+
+	public String getEncryptAlgorithm() {
+		return encryptAlgorithm;
+	}
+
+	public boolean isCompressionEnabled() {
+		return compress;
+	}
+
+	public String getCompressionAlgorithm() {
+		return compressionAlgorithm;
+	}
+
+	public boolean isRequestMdn() {
+		return requestMdn;
+	}
+
+	public String getMdnType() {
+		return mdnType;
+	}
+
+	public String getAsynchronousMdnUrl() {
+		return asynchronousMdnUrl;
+	}
+
+	public boolean isRequestSignedMdn() {
+		return requestSignedMdn;
+	}
+
+	public String getMdnSigningAlgorithm() {
+		return mdnSigningAlgorithm;
+	}
+
+	public long getMdnTimeoutSeconds() {
+		return mdnTimeoutSeconds;
+	}
+
+	public int getMdnResendAttempts() {
+		return mdnResendAttempts;
+	}
+}
@@ -65,7 +65,12 @@ public class XmlPartyManager extends BasePartyManager {
 						continue;
 					}
 					
-					addParty(party);
+					try {
+						addParty(party);
+					} catch(RuntimeException e) {
+						sLogger.error("Party with ID [" + party.getPartyId() + "] has invalid settings. The party definition is discarded. " + e.getMessage(), e);
+						continue;
+					}
 					sLogger.info("Party with ID [" + party.getPartyId() + "] was created.");
 				}
 				
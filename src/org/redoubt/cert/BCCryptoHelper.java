@@ -1,10 +1,13 @@
 package org.redoubt.cert;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
@@ -13,13 +16,18 @@ import java.security.SignatureException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.activation.CommandMap;
 import javax.activation.MailcapCommandMap;
 import javax.mail.MessagingException;
 import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
 
@@ -27,6 +35,9 @@ import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.cms.AttributeTable;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.asn1.smime.SMIMECapabilitiesAttribute;
 import org.bouncycastle.asn1.smime.SMIMECapability;
 import org.bouncycastle.asn1.smime.SMIMECapabilityVector;
@@ -35,13 +46,19 @@ import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cms.CMSAttributeTableGenerator;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
 import org.bouncycastle.cms.RecipientId;
+import org.bouncycastle.cms.RecipientInfoGenerator;
 import org.bouncycastle.cms.RecipientInformation;
 import org.bouncycastle.cms.RecipientInformationStore;
+import org.bouncycastle.cms.SignerInfoGenerator;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
 import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
@@ -58,18 +75,58 @@ import org.bouncycastle.mail.smime.SMIMESigned;
 import org.bouncycastle.mail.smime.SMIMESignedGenerator;
 import org.bouncycastle.mail.smime.SMIMESignedParser;
 import org.bouncycastle.mail.smime.SMIMEUtil;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.OutputCompressor;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
-import org.bouncycastle.util.encoders.Base64;
 import org.redoubt.api.configuration.ICryptoHelper;
+import org.redoubt.api.configuration.SecurityOptions;
 import org.redoubt.protocol.ProtocolException;
 import org.redoubt.protocol.as2.As2HeaderDictionary;
+import org.redoubt.util.FileMimeBodyPart;
+import org.redoubt.util.MicOutputStream;
 
 public class BCCryptoHelper implements ICryptoHelper {
+	/* Every name a digest goes by, looked up once per message instead of compared in turn */
+	private static final Map<String, DigestAlgorithm> DIGEST_ALGORITHMS = new HashMap<String, DigestAlgorithm>();
+	private static final Map<String, ASN1ObjectIdentifier> ENCRYPTION_ALGORITHMS = new HashMap<String, ASN1ObjectIdentifier>();
+	/* Certificates are only replaced when the keystore is, so this is plenty - 
+	 * when it fills up the caches simply start over */
+	private static final int MAX_CACHED_CERTIFICATES = 256;
+	
+	static {
+		DIGEST_ALGORITHMS.put(DIGEST_SHA1, new DigestAlgorithm("sha1", OIWObjectIdentifiers.idSHA1, "SHA1withRSA", "sha-1"));
+		DIGEST_ALGORITHMS.put(DIGEST_MD5, new DigestAlgorithm("md5", PKCSObjectIdentifiers.md5, "MD5withRSA", "md5"));
+		DIGEST_ALGORITHMS.put(DIGEST_SHA256, new DigestAlgorithm("sha-256", NISTObjectIdentifiers.id_sha256, "SHA256withRSA", "sha-256"));
+		DIGEST_ALGORITHMS.put(DIGEST_SHA384, new DigestAlgorithm("sha-384", NISTObjectIdentifiers.id_sha384, "SHA384withRSA", "sha-384"));
+		DIGEST_ALGORITHMS.put(DIGEST_SHA512, new DigestAlgorithm("sha-512", NISTObjectIdentifiers.id_sha512, "SHA512withRSA", "sha-512"));
+		
+		ENCRYPTION_ALGORITHMS.put(CRYPT_RC2, CMSAlgorithm.RC2_CBC);
+		ENCRYPTION_ALGORITHMS.put(CRYPT_3DES, CMSAlgorithm.DES_EDE3_CBC);
+		ENCRYPTION_ALGORITHMS.put(CRYPT_CAST5, CMSAlgorithm.CAST5_CBC);
+		ENCRYPTION_ALGORITHMS.put(CRYPT_IDEA, CMSAlgorithm.IDEA_CBC);
+		ENCRYPTION_ALGORITHMS.put(CRYPT_AES128, CMSAlgorithm.AES128_CBC);
+		ENCRYPTION_ALGORITHMS.put(CRYPT_AES256, CMSAlgorithm.AES256_CBC);
+		ENCRYPTION_ALGORITHMS.put(CRYPT_AES128_GCM, CMSAlgorithm.AES128_GCM);
+		ENCRYPTION_ALGORITHMS.put(CRYPT_AES256_GCM, CMSAlgorithm.AES256_GCM);
+	}
+	
+	/* What signing and encrypting for a certificate needs besides the cryptographic work itself */
+	private final Map<X509Certificate, SignerMaterial> signerMaterials = new ConcurrentHashMap<X509Certificate, SignerMaterial>();
+	private final Map<X509Certificate, RecipientInfoGenerator> recipientGenerators = new ConcurrentHashMap<X509Certificate, RecipientInfoGenerator>();
+	private DigestCalculatorProvider digestCalculatorProvider;
 	
 	public void init() {
         Security.addProvider(new BouncyCastleProvider());
+        
+        try {
+        	digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().setProvider(BouncyCastleProvider.PROVIDER_NAME).build();
+        } catch (OperatorCreationException e) {
+        	throw new IllegalStateException(e.getMessage(), e);
+        }
 
         MailcapCommandMap mc = (MailcapCommandMap) CommandMap.getDefaultCommandMap();
         mc.addMailcap("application/pkcs7-signature;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.pkcs7_signature");
@@ -117,35 +174,60 @@ public class BCCryptoHelper implements ICryptoHelper {
     }
 
     public String calculateMIC(Path file, String digestAlg) throws Exception {
-    	String micAlg = null;
-    	
-    	if(DIGEST_SHA1.equals(digestAlg)) {
-        	micAlg = "sha1";
-        } else if(DIGEST_MD5.equals(digestAlg)) {
-        	micAlg = "md5";
-        } else {
-			throw new ProtocolException("Unknown digest algorithm [" + digestAlg + "]. Message will not be processed.");
-		}
+    	try (MicOutputStream micOut = createMICStream(null, digestAlg)) {
+    		Files.copy(file, micOut);
+    		return micOut.getMic();
+    	}
+    }
+    
+    public MicOutputStream createMICStream(OutputStream out, String digestAlg) throws Exception {
+    	String micAlg = getMicAlgorithm(digestAlg);
     	
-    	MessageDigest md = MessageDigest.getInstance(micAlg, BouncyCastleProvider.PROVIDER_NAME);
-    	try (InputStream is = Files.newInputStream(file)) {
-    	  DigestInputStream dis = new DigestInputStream(is, md);
-    	  
-    	  /* Read stream to EOF */
-    	  byte[] buf = new byte[4096];
-
-          while (dis.read(buf) >= 0) {
-          }
+    	return new MicOutputStream(out, MessageDigest.getInstance(micAlg, BouncyCastleProvider.PROVIDER_NAME), micAlg);
+    }
+    
+    /* Dashes and case are not significant - "sha-256", "SHA256" and "sha256" are the same digest */
+    @Override
+    public String resolveDigestAlgorithm(String name) {
+    	if(name == null) {
+    		return null;
     	}
-    	byte[] digest = md.digest();
-    	String micString = new String(Base64.encode(digest));
-        StringBuffer micResult = new StringBuffer(micString);
-        micResult.append(", ").append(micAlg);
     	
-        return micResult.toString();
+    	String digestAlg = name.trim().toLowerCase(Locale.ROOT).replace("-", "");
+    	return DIGEST_ALGORITHMS.containsKey(digestAlg) ? digestAlg : null;
+    }
+    
+    protected String getMicAlgorithm(String digestAlg) throws ProtocolException {
+    	return getDigestAlgorithm(digestAlg).micName;
+    }
+    
+    protected ASN1ObjectIdentifier getDigestAlgorithmIdentifier(String digestAlg) throws ProtocolException {
+    	return getDigestAlgorithm(digestAlg).identifier;
+    }
+    
+    protected DigestAlgorithm getDigestAlgorithm(String digestAlg) throws ProtocolException {
+    	DigestAlgorithm algorithm = DIGEST_ALGORITHMS.get(digestAlg);
+    	if(algorithm == null) {
+    		throw new ProtocolException("Unknown digest algorithm [" + digestAlg + "]. Message will not be processed.");
+    	}
+    	return algorithm;
     }
 
     public MimeBodyPart decrypt(MimeBodyPart part, X509Certificate cert, PrivateKey key) throws Exception {
+        RecipientInformation recipient = getRecipient(part, cert);
+        
+        MimeBodyPart res = SMIMEUtil.toMimeBodyPart(recipient.getContentStream(new JceKeyTransEnvelopedRecipient(key).setProvider(BouncyCastleProvider.PROVIDER_NAME)));
+
+        return res;
+    }
+    
+    public MimeBodyPart decrypt(MimeBodyPart part, X509Certificate cert, PrivateKey key, Path target) throws Exception {
+        RecipientInformation recipient = getRecipient(part, cert);
+        
+        return toFileMimeBodyPart(recipient.getContentStream(new JceKeyTransEnvelopedRecipient(key).setProvider(BouncyCastleProvider.PROVIDER_NAME)), target);
+    }
+    
+    protected RecipientInformation getRecipient(MimeBodyPart part, X509Certificate cert) throws Exception {
         // Make sure the data is encrypted
         if (!isEncrypted(part)) {
             throw new GeneralSecurityException("Content-Type indicates data isn't encrypted");
@@ -163,69 +245,33 @@ public class BCCryptoHelper implements ICryptoHelper {
             throw new GeneralSecurityException("Certificate does not match part signature");
         }
         
-        MimeBodyPart res = SMIMEUtil.toMimeBodyPart(recipient.getContentStream(new JceKeyTransEnvelopedRecipient(key).setProvider(BouncyCastleProvider.PROVIDER_NAME)));
-
-        return res;
+        return recipient;
     }
     
     public MimeBodyPart encrypt(MimeBodyPart part, X509Certificate x509Cert, String algorithm) throws Exception {
-        ASN1ObjectIdentifier encAlg = null;
-        
-        if(CRYPT_RC2.equals(algorithm)) {
-        	encAlg = CMSAlgorithm.RC2_CBC;
-        } else if(CRYPT_3DES.equals(algorithm)) {
-        	encAlg = CMSAlgorithm.DES_EDE3_CBC;
-        } else if(CRYPT_CAST5.equals(algorithm)) {
-        	encAlg = CMSAlgorithm.CAST5_CBC;
-        } else if(CRYPT_IDEA.equals(algorithm)) { 
-        	encAlg = CMSAlgorithm.IDEA_CBC;
-        } else {
-			throw new ProtocolException("Unknown encryption algorithm [" + algorithm + "]. Message will not be processed.");
-		}
+        ASN1ObjectIdentifier encAlg = getEncryptionAlgorithm(algorithm);
 
         SMIMEEnvelopedGenerator gen = new SMIMEEnvelopedGenerator();
-        gen.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(x509Cert).setProvider(BouncyCastleProvider.PROVIDER_NAME));
+        gen.addRecipientInfoGenerator(getRecipientInfoGenerator(x509Cert));
         gen.setContentTransferEncoding(As2HeaderDictionary.TRANSFER_ENCODING_BINARY);
         MimeBodyPart encData = gen.generate(part, new JceCMSContentEncryptorBuilder(encAlg).setProvider(BouncyCastleProvider.PROVIDER_NAME).build());
         
         return encData;
     }
+    
+    protected ASN1ObjectIdentifier getEncryptionAlgorithm(String algorithm) throws ProtocolException {
+    	ASN1ObjectIdentifier identifier = ENCRYPTION_ALGORITHMS.get(algorithm);
+    	if(identifier == null) {
+    		throw new ProtocolException("Unknown encryption algorithm [" + algorithm + "]. Message will not be processed.");
+    	}
+    	return identifier;
+    }
 
     public MimeBodyPart sign(MimeBodyPart part, X509Certificate cert, PrivateKey key, String digest) throws Exception {
-        String digestAlg = null;
-        
-        if(DIGEST_SHA1.equals(digest)) {
-        	digestAlg = "SHA1withRSA";
-        } else if(DIGEST_MD5.equals(digest)) {
-        	digestAlg = "MD5withRSA";
-        } else {
-			throw new ProtocolException("Unknown digest algorithm [" + digest + "]. Message will not be processed.");
-		}
-        
-        List<X509Certificate> certList = new ArrayList<X509Certificate>();
-
-        certList.add(cert);
-
-        @SuppressWarnings("rawtypes")
-		Store certs = new JcaCertStore(certList);
-        
-        ASN1EncodableVector         signedAttrs = new ASN1EncodableVector();
-        SMIMECapabilityVector       caps = new SMIMECapabilityVector();
-
-        caps.addCapability(SMIMECapability.dES_EDE3_CBC);
-        caps.addCapability(SMIMECapability.rC2_CBC, 128);
-        caps.addCapability(SMIMECapability.dES_CBC);
-        
-        signedAttrs.add(new SMIMECapabilitiesAttribute(caps));
-        
-        IssuerAndSerialNumber issAndSer = new IssuerAndSerialNumber(new X500Name(cert.getIssuerDN().getName()), cert.getSerialNumber());
-        signedAttrs.add(new SMIMEEncryptionKeyPreferenceAttribute(issAndSer));
-        
         SMIMESignedGenerator gen = new SMIMESignedGenerator();
         gen.setContentTransferEncoding(As2HeaderDictionary.TRANSFER_ENCODING_BINARY);
-        gen.addSignerInfoGenerator(new JcaSimpleSignerInfoGeneratorBuilder().setProvider(BouncyCastleProvider.PROVIDER_NAME).
-        		setSignedAttributeGenerator(new AttributeTable(signedAttrs)).build(digestAlg, key, cert));
-        gen.addCertificates(certs);
+        gen.addSignerInfoGenerator(createSignerInfoGenerator(cert, key, digest));
+        gen.addCertificates(createCertStore(cert));
         MimeMultipart mm = gen.generate(part);
 
         MimeBodyPart tempBody = new MimeBodyPart();
@@ -234,9 +280,58 @@ public class BCCryptoHelper implements ICryptoHelper {
 
         return tempBody;
     }
+    
+    /**
+     * A signer info generator holds the signature and digest state of a single message, so 
+     * a new one is built for every message - from the attributes and the certificate holder
+     * prepared once per certificate.
+     */
+    protected SignerInfoGenerator createSignerInfoGenerator(X509Certificate cert, PrivateKey key, String digest) throws Exception {
+        String digestAlg = getDigestAlgorithm(digest).signatureAlgorithm;
+        SignerMaterial material = getSignerMaterial(cert);
+        
+        ContentSigner signer = new JcaContentSignerBuilder(digestAlg).setProvider(BouncyCastleProvider.PROVIDER_NAME).build(key);
+        return new JcaSignerInfoGeneratorBuilder(digestCalculatorProvider).
+        		setSignedAttributeGenerator(material.signedAttributes).build(signer, material.certificateHolder);
+    }
+    
+    @SuppressWarnings("rawtypes")
+	protected Store createCertStore(X509Certificate cert) throws Exception {
+        return getSignerMaterial(cert).certStore;
+    }
+    
+    protected SignerMaterial getSignerMaterial(X509Certificate cert) throws Exception {
+    	SignerMaterial material = signerMaterials.get(cert);
+    	if(material == null) {
+    		material = new SignerMaterial(cert);
+    		if(signerMaterials.size() >= MAX_CACHED_CERTIFICATES) {
+    			signerMaterials.clear();
+    		}
+    		signerMaterials.put(cert, material);
+    	}
+    	return material;
+    }
+    
+    /* Key transport generators keep no state between messages and can be shared */
+    protected RecipientInfoGenerator getRecipientInfoGenerator(X509Certificate cert) throws Exception {
+    	RecipientInfoGenerator generator = recipientGenerators.get(cert);
+    	if(generator == null) {
+    		generator = new JceKeyTransRecipientInfoGenerator(cert).setProvider(BouncyCastleProvider.PROVIDER_NAME);
+    		if(recipientGenerators.size() >= MAX_CACHED_CERTIFICATES) {
+    			recipientGenerators.clear();
+    		}
+    		recipientGenerators.put(cert, generator);
+    	}
+    	return generator;
+    }
+    
+    /* The micalg parameter of multipart/signed, as BouncyCastle names the digests */
+    @Override
+    public String getMicalgParameter(String digest) throws ProtocolException {
+        return getDigestAlgorithm(digest).micalg;
+    }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-	public MimeBodyPart verify(MimeBodyPart part, X509Certificate cert) throws Exception {
+    public MimeBodyPart verify(MimeBodyPart part, X509Certificate cert) throws Exception {
         // Make sure the data is signed
         if (!isSigned(part)) {
             throw new GeneralSecurityException("Content-Type indicates data isn't signed");
@@ -244,15 +339,51 @@ public class BCCryptoHelper implements ICryptoHelper {
         
         MimeMultipart mainParts = (MimeMultipart) part.getContent();
         SMIMESignedParser parser = new SMIMESignedParser(new JcaDigestCalculatorProviderBuilder().build(), mainParts);
+        verifySigners(parser, cert);
+        
+        SMIMESigned signedPart = new SMIMESigned(mainParts);
+        return signedPart.getContent();
+    }
+    
+    /**
+     * The signed content is digested through the backing file, which is removed 
+     * afterwards. The returned part is read from the original part. When the signer 
+     * digested the content with the requested MIC algorithm, that digest becomes the MIC.
+     */
+    public MimeBodyPart verify(MimeBodyPart part, X509Certificate cert, Path backingFile, SecurityOptions options) throws Exception {
+        // Make sure the data is signed
+        if (!isSigned(part)) {
+            throw new GeneralSecurityException("Content-Type indicates data isn't signed");
+        }
+        
+        MimeMultipart mainParts = (MimeMultipart) part.getContent();
+        try {
+        	SMIMESignedParser parser = new SMIMESignedParser(new JcaDigestCalculatorProviderBuilder().build(), mainParts, backingFile.toFile());
+        	SignerInformation signer = verifySigners(parser, cert);
+        	
+        	if(options != null && options.isMicRequested() && signer != null && 
+        			signer.getDigestAlgOID().equals(getDigestAlgorithmIdentifier(options.getMicAlgorithm()).getId())) {
+        		options.setMic(MicOutputStream.formatMic(signer.getContentDigest(), getMicAlgorithm(options.getMicAlgorithm())));
+        	}
+        	
+        	return parser.getContent();
+        } finally {
+        	Files.deleteIfExists(backingFile);
+        }
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+	protected SignerInformation verifySigners(SMIMESignedParser parser, X509Certificate cert) throws Exception {
         Store certs = parser.getCertificates();
         
         SignerInformationStore signers = parser.getSignerInfos();
 
         Collection<SignerInformation> signersCollection = signers.getSigners();
         Iterator<SignerInformation> it = signersCollection.iterator();
+        SignerInformation signer = null;
         
         while (it.hasNext()) {
-        	SignerInformation signer = (SignerInformation)it.next();
+        	signer = (SignerInformation)it.next();
             Collection certCollection = certs.getMatches(signer.getSID());
 
             Iterator certIt = certCollection.iterator();
@@ -267,8 +398,7 @@ public class BCCryptoHelper implements ICryptoHelper {
             }
         }
         
-        SMIMESigned signedPart = new SMIMESigned(mainParts);
-        return signedPart.getContent();
+        return signer;
     }
 
     protected InputStream trimCRLFPrefix(byte[] data) {
@@ -292,19 +422,21 @@ public class BCCryptoHelper implements ICryptoHelper {
 
 	@Override
 	public MimeBodyPart compress(MimeBodyPart part, String alg) throws Exception {
-		OutputCompressor compressor = null;
-		
-		if(COMPRESS_ZLIB.equals(alg)) {
-			compressor = new ZlibCompressor();
-		} else {
-			throw new ProtocolException("Unknown compression algorithm [" + alg + "]. Message will not be processed.");
-		}
+		OutputCompressor compressor = getCompressor(alg);
 		
 		SMIMECompressedGenerator  gen = new SMIMECompressedGenerator();
     	gen.setContentTransferEncoding(As2HeaderDictionary.TRANSFER_ENCODING_BINARY);
     	MimeBodyPart dataBP = gen.generate(part, compressor);
 		return dataBP;
 	}
+	
+	protected OutputCompressor getCompressor(String alg) throws ProtocolException {
+		if(COMPRESS_ZLIB.equals(alg)) {
+			return new ZlibCompressor();
+		} else {
+			throw new ProtocolException("Unknown compression algorithm [" + alg + "]. Message will not be processed.");
+		}
+	}
 
 	@Override
 	public MimeBodyPart decompress(MimeBodyPart part) throws Exception {
@@ -312,5 +444,117 @@ public class BCCryptoHelper implements ICryptoHelper {
         MimeBodyPart res = SMIMEUtil.toMimeBodyPart(parser.getContent(new ZlibExpanderProvider()));
         return res;
 	}
+	
+	@Override
+	public MimeBodyPart decompress(MimeBodyPart part, Path target) throws Exception {
+		SMIMECompressedParser parser = new SMIMECompressedParser(part);
+		return toFileMimeBodyPart(parser.getContent(new ZlibExpanderProvider()), target);
+	}
+	
+	/* Unlike SMIMEUtil.toMimeBodyPart, only the headers of the part are read into memory */
+	protected MimeBodyPart toFileMimeBodyPart(CMSTypedStream content, Path target) throws Exception {
+		try (InputStream in = new BufferedInputStream(content.getContentStream())) {
+			InternetHeaders headers = new InternetHeaders(in);
+			Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+			
+			return new FileMimeBodyPart(headers, target, true);
+		} catch(Exception e) {
+			Files.deleteIfExists(target);
+			throw e;
+		}
+	}
 
-}
\ No newline at end of file
+	@Override
+	public MimeBodyPart secure(MimeBodyPart part, Path target, SecurityOptions options) throws Exception {
+		SMIMEStreamWriter writer = new SMIMEStreamWriter(part);
+		
+		if(options.isCompress()) {
+			writer.setCompressor(getCompressor(options.getCompressionAlgorithm()));
+		}
+		
+		if(options.isSign()) {
+			X509Certificate cert = options.getSignCertificate();
+			writer.setSigner(createSignerInfoGenerator(cert, options.getSignKey(), options.getSignDigestAlgorithm()), 
+					createCertStore(cert), getMicalgParameter(options.getSignDigestAlgorithm()));
+		}
+		
+		if(options.isEncrypt()) {
+			writer.setEncryptor(getRecipientInfoGenerator(options.getEncryptCertificate()), 
+					new JceCMSContentEncryptorBuilder(getEncryptionAlgorithm(options.getEncryptAlgorithm())).setProvider(BouncyCastleProvider.PROVIDER_NAME).build());
+		}
+		
+		String micAlg = null;
+		MessageDigest md = null;
+		if(options.isMicRequested()) {
+			micAlg = getMicAlgorithm(options.getMicAlgorithm());
+			md = MessageDigest.getInstance(micAlg, BouncyCastleProvider.PROVIDER_NAME);
+			writer.setMicDigest(md);
+		}
+		
+		InternetHeaders headers;
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+			headers = writer.write(out);
+		} catch(Exception e) {
+			Files.deleteIfExists(target);
+			throw e;
+		}
+		
+		if(md != null) {
+			options.setMic(MicOutputStream.formatMic(md.digest(), micAlg));
+		}
+		
+		return new FileMimeBodyPart(headers, target, true);
+	}
+	
+	/**
+	 * The names of a digest as the MIC, the CMS signer info, the signature and the 
+	 * micalg parameter of multipart/signed expect them.
+	 */
+	protected static class DigestAlgorithm {
+		private final String micName;
+		private final ASN1ObjectIdentifier identifier;
+		private final String signatureAlgorithm;
+		private final String micalg;
+		
+		DigestAlgorithm(String micName, ASN1ObjectIdentifier identifier, String signatureAlgorithm, String micalg) {
+			this.micName = micName;
+			this.identifier = identifier;
+			this.signatureAlgorithm = signatureAlgorithm;
+			this.micalg = micalg;
+		}
+	}
+	
+	/**
+	 * The parts of a signature that only depend on the signing certificate.
+	 */
+	protected static class SignerMaterial {
+		private final CMSAttributeTableGenerator signedAttributes;
+		@SuppressWarnings("rawtypes")
+		private final Store certStore;
+		private final X509CertificateHolder certificateHolder;
+		
+		SignerMaterial(X509Certificate cert) throws Exception {
+			ASN1EncodableVector         signedAttrs = new ASN1EncodableVector();
+	        SMIMECapabilityVector       caps = new SMIMECapabilityVector();
+
+	        caps.addCapability(SMIMECapability.aES256_CBC);
+	        caps.addCapability(SMIMECapability.aES128_CBC);
+	        caps.addCapability(SMIMECapability.dES_EDE3_CBC);
+	        caps.addCapability(SMIMECapability.rC2_CBC, 128);
+	        caps.addCapability(SMIMECapability.dES_CBC);
+	        
+	        signedAttrs.add(new SMIMECapabilitiesAttribute(caps));
+	        
+	        IssuerAndSerialNumber issAndSer = new IssuerAndSerialNumber(new X500Name(cert.getIssuerDN().getName()), cert.getSerialNumber());
+	        signedAttrs.add(new SMIMEEncryptionKeyPreferenceAttribute(issAndSer));
+	        
+	        signedAttributes = new DefaultSignedAttributeTableGenerator(new AttributeTable(signedAttrs));
+	        
+	        List<X509Certificate> certList = new ArrayList<X509Certificate>();
+	        certList.add(cert);
+	        certStore = new JcaCertStore(certList);
+	        
+	        certificateHolder = new JcaX509CertificateHolder(cert);
+		}
+	}
+}
@@ -1,18 +1,35 @@
 package org.redoubt.cert;
 
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.redoubt.api.configuration.ICertificateManager;
@@ -21,74 +38,95 @@ import org.redoubt.api.factory.Factory;
 import org.redoubt.api.factory.FactoryConstants;
 
 
+/**
+ * Serves keys and certificates from a snapshot of the keystore and truststore. The files
+ * are watched and, when one of them changes, a new snapshot is loaded in the background
+ * and replaces the current one. A snapshot that can't be loaded is discarded and the
+ * current one stays in use.
+ */
 public class JksCertificateManager implements ICertificateManager {
     private static final Logger sLogger = Logger.getLogger(JksCertificateManager.class);
-    private KeyStore keystore;
-    private KeyStore truststore;
+
+    /* Editors and copy tools often write a file in several steps - wait for them to finish */
+    private static final long RELOAD_QUIET_PERIOD_MILLIS = 500;
+
+    private volatile Snapshot snapshot;
+    /* Set for the managers returned by getSnapshot, which never reload */
+    private final boolean pinned;
+    private Thread watcher;
+
+    public JksCertificateManager() {
+    	pinned = false;
+    }
+
+    private JksCertificateManager(Snapshot snapshot) {
+    	this.snapshot = snapshot;
+    	pinned = true;
+    }
 
     @Override
     public void init() {
-        IServerConfigurationManager configurationManager = Factory.getInstance().getServerConfigurationManager();
-        Path keystoreFile = configurationManager.getKeystoreFile();
-        char[] keystorePassword = configurationManager.getKeystorePassword().toCharArray();
-        
-        Path truststoreFile = configurationManager.getTruststoreFile();
-        char[] truststorePassword = configurationManager.getTruststorePassword().toCharArray();
-        
-        try(InputStream keystoreStream = new FileInputStream(keystoreFile.toFile());
-                InputStream truststoreStream = new FileInputStream(truststoreFile.toFile());) {
-            sLogger.info("Loading keystore from [" + keystoreFile.toString() + "].");
-            keystore = KeyStore.getInstance(getKeystoreType());
-            keystore.load(keystoreStream, keystorePassword);
-            
-            sLogger.info("Loading truststore from [" + truststoreFile.toString() + "].");
-            truststore = KeyStore.getInstance(getKeystoreType());
-            truststore.load(truststoreStream, truststorePassword);
+        try {
+            snapshot = loadSnapshot();
         } catch (Exception e) {
             sLogger.error("An error has occured while initializing CertificateManager! " + e.getMessage(), e);
             sLogger.error("APPLICATION WILL BE TERMMINATED.");
             System.exit(1);
         }
+
+        startWatching();
+    }
+
+    @Override
+    public ICertificateManager getSnapshot() {
+    	return pinned ? this : new JksCertificateManager(snapshot);
     }
 
     @Override
     public String getKeystoreType() {
         return FactoryConstants.CERTIFICATE_MANAGER_JKS;
     }
-    
+
     public X509Certificate getX509Certificate(String alias) {
     	try {
-			X509Certificate cert = (X509Certificate) keystore.getCertificate(alias);
-			
-			if (cert == null) {
+    		CachedCertificate cached = snapshot.certificates.get(alias);
+    		if (cached == null) {
                 throw new KeyStoreException(alias);
             }
-			
-			checkCertificateValidity(cert);
-			
-			return cert;
+
+			cached.checkValidity(System.currentTimeMillis());
+
+			return cached.certificate;
 		} catch (Exception e) {
 			sLogger.error("An error has occured while fetching certificate with alias [" + alias + "] in keystore! " + e.getMessage(), e);
 			return null;
 		}
     }
-    
+
     public PrivateKey getPrivateKey(String alias, char[] password) {
     	PrivateKey key;
 		try {
-			key = (PrivateKey) keystore.getKey(alias, password);
-			
+			Snapshot current = snapshot;
+			KeyAlias keyAlias = new KeyAlias(alias, password);
+			key = current.privateKeys.get(keyAlias);
+			if(key != null) {
+				return key;
+			}
+
+			key = (PrivateKey) current.keystore.getKey(alias, password);
+
 			if (key == null) {
 	            throw new KeyStoreException(alias);
 	        }
 
+			current.privateKeys.put(keyAlias, key);
 	        return key;
 		} catch (Exception e) {
 			sLogger.error("An error has occured while fetching key with alias [" + alias + "] in keystore! " + e.getMessage(), e);
 			return null;
 		}
     }
-    
+
     @Override
     public boolean isSelfSigned(X509Certificate cert) throws Exception {
         try {
@@ -107,17 +145,217 @@ public class JksCertificateManager implements ICertificateManager {
 	@Override
 	public boolean checkCertificateValidity(X509Certificate cert) throws Exception {
 		Date today = new Date();
-		Date notAfter = cert.getNotAfter(); 
+		Date notAfter = cert.getNotAfter();
 		Date notBefore = cert.getNotBefore();
-		
+
 		if(today.before(notBefore)) {
 			throw new CertificateNotYetValidException("Certificate is not yet valid!");
 		}
-		
+
 		if(today.after(notAfter)) {
 			throw new CertificateExpiredException("Certificate has expired!");
 		}
-		
+
 		return true;
 	}
+
+	private Snapshot loadSnapshot() throws Exception {
+		IServerConfigurationManager configurationManager = Factory.getInstance().getServerConfigurationManager();
+        Path keystoreFile = configurationManager.getKeystoreFile();
+        char[] keystorePassword = configurationManager.getKeystorePassword().toCharArray();
+
+        Path truststoreFile = configurationManager.getTruststoreFile();
+        char[] truststorePassword = configurationManager.getTruststorePassword().toCharArray();
+
+        try(InputStream keystoreStream = new FileInputStream(keystoreFile.toFile());
+                InputStream truststoreStream = new FileInputStream(truststoreFile.toFile());) {
+            sLogger.info("Loading keystore from [" + keystoreFile.toString() + "].");
+            KeyStore keystore = KeyStore.getInstance(getKeystoreType());
+            keystore.load(keystoreStream, keystorePassword);
+
+            sLogger.info("Loading truststore from [" + truststoreFile.toString() + "].");
+            KeyStore truststore = KeyStore.getInstance(getKeystoreType());
+            truststore.load(truststoreStream, truststorePassword);
+
+            return new Snapshot(keystore, truststore);
+        }
+	}
+
+	private void reload() {
+		try {
+			snapshot = loadSnapshot();
+			sLogger.info("Keystore and truststore have been reloaded.");
+		} catch (Exception e) {
+			sLogger.error("An error has occured while reloading keystore and truststore. The keys and certificates loaded before remain in use. " + e.getMessage(), e);
+		}
+	}
+
+	private void startWatching() {
+		if(watcher != null) {
+			return;
+		}
+
+		IServerConfigurationManager configurationManager = Factory.getInstance().getServerConfigurationManager();
+		Set<Path> files = new HashSet<Path>();
+		files.add(configurationManager.getKeystoreFile().toAbsolutePath());
+		files.add(configurationManager.getTruststoreFile().toAbsolutePath());
+
+		try {
+			WatchService watchService = FileSystems.getDefault().newWatchService();
+			for(Path folder : parentsOf(files)) {
+				folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+
+			watcher = new Thread(new KeystoreWatcher(watchService, files), "KeystoreWatcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		} catch (IOException e) {
+			sLogger.warn("Unable to watch keystore and truststore for changes - they will not be reloaded. " + e.getMessage(), e);
+		}
+	}
+
+	private static Set<Path> parentsOf(Set<Path> files) {
+		Set<Path> folders = new HashSet<Path>();
+		for(Path file : files) {
+			folders.add(file.getParent());
+		}
+		return folders;
+	}
+
+	/**
+	 * The keystore and truststore as they were loaded, with every certificate and its
+	 * validity period read up front. Keys are decrypted when they are first used, as
+	 * that needs their password.
+	 */
+	private static class Snapshot {
+		private final KeyStore keystore;
+		private final KeyStore truststore;
+		private final Map<String, CachedCertificate> certificates;
+		private final Map<KeyAlias, PrivateKey> privateKeys = new ConcurrentHashMap<KeyAlias, PrivateKey>();
+
+		Snapshot(KeyStore keystore, KeyStore truststore) throws KeyStoreException {
+			this.keystore = keystore;
+			this.truststore = truststore;
+
+			Map<String, CachedCertificate> certificates = new HashMap<String, CachedCertificate>();
+			Enumeration<String> aliases = keystore.aliases();
+			while(aliases.hasMoreElements()) {
+				String alias = aliases.nextElement();
+				Certificate certificate = keystore.getCertificate(alias);
+				if(certificate instanceof X509Certificate) {
+					certificates.put(alias, new CachedCertificate((X509Certificate) certificate));
+				}
+			}
+			this.certificates = Collections.unmodifiableMap(certificates);
+		}
+	}
+
+	/**
+	 * A certificate together with its validity period, so it can be checked without
+	 * creating dates on every use.
+	 */
+	private static class CachedCertificate {
+		private final X509Certificate certificate;
+		private final long notBefore;
+		private final long notAfter;
+
+		CachedCertificate(X509Certificate certificate) {
+			this.certificate = certificate;
+			this.notBefore = certificate.getNotBefore().getTime();
+			this.notAfter = certificate.getNotAfter().getTime();
+		}
+
+		void checkValidity(long now) throws CertificateException {
+			if(now < notBefore) {
+				throw new CertificateNotYetValidException("Certificate is not yet valid!");
+			}
+
+			if(now > notAfter) {
+				throw new CertificateExpiredException("Certificate has expired!");
+			}
+		}
+	}
+
+	/**
+	 * A key is cached for the password it was decrypted with, so a wrong password
+	 * still fails.
+	 */
+	private static class KeyAlias {
+		private final String alias;
+		private final char[] password;
+
+		KeyAlias(String alias, char[] password) {
+			this.alias = alias;
+			this.password = password == null ? null : password.clone();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (alias == null ? 0 : alias.hashCode()) + Arrays.hashCode(password);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof KeyAlias)) {
+				return false;
+			}
+			KeyAlias other = (KeyAlias) obj;
+			return (alias == null ? other.alias == null : alias.equals(other.alias)) && Arrays.equals(password, other.password);
+		}
+	}
+
+	private class KeystoreWatcher implements Runnable {
+		private final WatchService watchService;
+		private final Set<Path> files;
+
+		KeystoreWatcher(WatchService watchService, Set<Path> files) {
+			this.watchService = watchService;
+			this.files = files;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					if(awaitChange()) {
+						reload();
+					}
+				}
+			} catch (InterruptedException e) {
+				sLogger.debug("Keystore watcher has been stopped.");
+			} finally {
+				try {
+					watchService.close();
+				} catch (IOException e) {
+					sLogger.debug("Error while closing keystore watcher. " + e.getMessage(), e);
+				}
+			}
+		}
+
+		/**
+		 * @return true once one of the files has changed and no more changes have followed for a while
+		 */
+		private boolean awaitChange() throws InterruptedException {
+			boolean changed = collectChanges(watchService.take());
+			WatchKey key;
+			while((key = watchService.poll(RELOAD_QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+				changed |= collectChanges(key);
+			}
+			return changed;
+		}
+
+		private boolean collectChanges(WatchKey key) {
+			boolean changed = false;
+			Path folder = (Path) key.watchable();
+			for(WatchEvent<?> event : key.pollEvents()) {
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					changed = true;
+				} else if(files.contains(folder.resolve((Path) event.context()))) {
+					changed = true;
+				}
+			}
+			key.reset();
+			return changed;
+		}
+	}
 }
@@ -0,0 +1,212 @@
+package org.redoubt.cert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.UUID;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+
+import org.bouncycastle.cms.CMSCompressedDataStreamGenerator;
+import org.bouncycastle.cms.CMSEnvelopedDataStreamGenerator;
+import org.bouncycastle.cms.CMSSignedDataStreamGenerator;
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.mail.smime.util.CRLFOutputStream;
+import org.bouncycastle.operator.OutputCompressor;
+import org.bouncycastle.operator.OutputEncryptor;
+import org.bouncycastle.util.Store;
+import org.bouncycastle.util.io.TeeOutputStream;
+import org.redoubt.protocol.as2.As2HeaderDictionary;
+
+/**
+ * Writes the S/MIME layers of a part - compressed, then signed, then enveloped - as one
+ * chain of streams, so none of the intermediate layers is ever held in memory. The
+ * result is laid out the same way the BouncyCastle S/MIME generators lay it out.
+ */
+class SMIMEStreamWriter {
+	private static final String CRLF = "\r\n";
+
+	private MimeBodyPart part;
+	private OutputCompressor compressor;
+	private SignerInfoGenerator signerInfoGenerator;
+	@SuppressWarnings("rawtypes")
+	private Store certificates;
+	private String micalg;
+	private RecipientInfoGenerator recipientInfoGenerator;
+	private OutputEncryptor encryptor;
+	private MessageDigest micDigest;
+
+	SMIMEStreamWriter(MimeBodyPart part) {
+		this.part = part;
+	}
+
+	void setCompressor(OutputCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	@SuppressWarnings("rawtypes")
+	void setSigner(SignerInfoGenerator signerInfoGenerator, Store certificates, String micalg) {
+		this.signerInfoGenerator = signerInfoGenerator;
+		this.certificates = certificates;
+		this.micalg = micalg;
+	}
+
+	void setEncryptor(RecipientInfoGenerator recipientInfoGenerator, OutputEncryptor encryptor) {
+		this.recipientInfoGenerator = recipientInfoGenerator;
+		this.encryptor = encryptor;
+	}
+
+	/**
+	 * The digest is fed with the signed content when signing, otherwise with the
+	 * original part and its headers.
+	 */
+	void setMicDigest(MessageDigest micDigest) {
+		this.micDigest = micDigest;
+	}
+
+	/**
+	 * Writes the body of the outermost layer.
+	 * @return the headers of the outermost layer
+	 */
+	InternetHeaders write(OutputStream out) throws Exception {
+		InternetHeaders headers;
+
+		if(encryptor != null) {
+			headers = createPkcs7MimeHeaders("smime.p7m", "enveloped-data", "S/MIME Encrypted Message");
+			writeEnveloped(out);
+		} else if(signerInfoGenerator != null) {
+			String boundary = createBoundary();
+			headers = new InternetHeaders();
+			headers.setHeader(As2HeaderDictionary.CONTENT_TYPE, createSignedContentType(boundary));
+			writeSigned(out, boundary);
+		} else if(compressor != null) {
+			headers = createPkcs7MimeHeaders("smime.p7z", "compressed-data", "S/MIME Compressed Message");
+			writeCompressed(out);
+		} else {
+			throw new IllegalStateException("None of compression, signing or encryption is requested.");
+		}
+
+		return headers;
+	}
+
+	private void writeEnveloped(OutputStream out) throws Exception {
+		CMSEnvelopedDataStreamGenerator generator = new CMSEnvelopedDataStreamGenerator();
+		generator.addRecipientInfoGenerator(recipientInfoGenerator);
+
+		OutputStream encryptingStream = generator.open(out, encryptor);
+		if(signerInfoGenerator != null) {
+			String boundary = createBoundary();
+			InternetHeaders headers = new InternetHeaders();
+			headers.setHeader(As2HeaderDictionary.CONTENT_TYPE, createSignedContentType(boundary));
+			writeHeaders(encryptingStream, headers);
+			writeSigned(encryptingStream, boundary);
+		} else if(compressor != null) {
+			writeHeaders(encryptingStream, createPkcs7MimeHeaders("smime.p7z", "compressed-data", "S/MIME Compressed Message"));
+			writeCompressed(encryptingStream);
+		} else {
+			writeContent(encryptingStream);
+		}
+		encryptingStream.close();
+	}
+
+	private void writeSigned(OutputStream out, String boundary) throws Exception {
+		CMSSignedDataStreamGenerator generator = new CMSSignedDataStreamGenerator();
+		generator.addSignerInfoGenerator(signerInfoGenerator);
+		generator.addCertificates(certificates);
+
+		/* The signature is detached - only the SignedData structure, a few KB, ends up in here */
+		ByteArrayOutputStream signature = new ByteArrayOutputStream();
+		OutputStream signingStream = generator.open(signature, false);
+
+		writeAscii(out, "--" + boundary + CRLF);
+
+		OutputStream signedContent = new TeeOutputStream(out, signingStream);
+		if(micDigest != null) {
+			signedContent = new DigestOutputStream(signedContent, micDigest);
+		}
+		if(isCanonicalisationRequired()) {
+			signedContent = new CRLFOutputStream(signedContent);
+		}
+
+		if(compressor != null) {
+			writeHeaders(signedContent, createPkcs7MimeHeaders("smime.p7z", "compressed-data", "S/MIME Compressed Message"));
+			writeCompressed(signedContent);
+		} else {
+			part.writeTo(signedContent);
+		}
+		signedContent.flush();
+		signingStream.close();
+
+		writeAscii(out, CRLF + "--" + boundary + CRLF);
+		InternetHeaders signatureHeaders = new InternetHeaders();
+		signatureHeaders.setHeader(As2HeaderDictionary.CONTENT_TYPE, "application/pkcs7-signature; name=smime.p7s; smime-type=signed-data");
+		signatureHeaders.setHeader(As2HeaderDictionary.CONTENT_TRANSFER_ENCODING, As2HeaderDictionary.TRANSFER_ENCODING_BINARY);
+		signatureHeaders.setHeader("Content-Disposition", "attachment; filename=\"smime.p7s\"");
+		signatureHeaders.setHeader("Content-Description", "S/MIME Cryptographic Signature");
+		writeHeaders(out, signatureHeaders);
+		signature.writeTo(out);
+		writeAscii(out, CRLF + "--" + boundary + "--" + CRLF);
+	}
+
+	private void writeCompressed(OutputStream out) throws Exception {
+		CMSCompressedDataStreamGenerator generator = new CMSCompressedDataStreamGenerator();
+
+		OutputStream compressingStream = generator.open(out, compressor);
+		writeContent(compressingStream);
+		compressingStream.close();
+	}
+
+	private void writeContent(OutputStream out) throws IOException, MessagingException {
+		if(micDigest != null && signerInfoGenerator == null) {
+			out = new DigestOutputStream(out, micDigest);
+		}
+		part.writeTo(out);
+	}
+
+	/* Mirrors SMIMEUtil - anything that isn't declared as binary is signed in its canonical form */
+	private boolean isCanonicalisationRequired() throws MessagingException {
+		if(compressor != null) {
+			return false;
+		}
+
+		String[] transferEncoding = part.getHeader(As2HeaderDictionary.CONTENT_TRANSFER_ENCODING);
+		return transferEncoding == null || !As2HeaderDictionary.TRANSFER_ENCODING_BINARY.equalsIgnoreCase(transferEncoding[0]);
+	}
+
+	private String createSignedContentType(String boundary) {
+		return "multipart/signed; protocol=\"application/pkcs7-signature\"; micalg=" + micalg + "; boundary=\"" + boundary + "\"";
+	}
+
+	private static InternetHeaders createPkcs7MimeHeaders(String fileName, String smimeType, String description) {
+		InternetHeaders headers = new InternetHeaders();
+		headers.setHeader(As2HeaderDictionary.CONTENT_TYPE, "application/pkcs7-mime; name=\"" + fileName + "\"; smime-type=" + smimeType);
+		headers.setHeader(As2HeaderDictionary.CONTENT_TRANSFER_ENCODING, As2HeaderDictionary.TRANSFER_ENCODING_BINARY);
+		headers.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+		headers.setHeader("Content-Description", description);
+		return headers;
+	}
+
+	private static String createBoundary() {
+		return "----=_Part_" + UUID.randomUUID().toString().replace("-", "");
+	}
+
+	private static void writeHeaders(OutputStream out, InternetHeaders headers) throws IOException {
+		@SuppressWarnings("unchecked")
+		Enumeration<String> lines = headers.getAllHeaderLines();
+		while(lines.hasMoreElements()) {
+			writeAscii(out, lines.nextElement() + CRLF);
+		}
+		writeAscii(out, CRLF);
+	}
+
+	private static void writeAscii(OutputStream out, String value) throws IOException {
+		out.write(value.getBytes(StandardCharsets.US_ASCII));
+	}
+}
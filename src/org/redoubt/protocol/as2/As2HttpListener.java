@@ -1,61 +1,193 @@
 package org.redoubt.protocol.as2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.internet.InternetHeaders;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
+import org.redoubt.api.factory.Factory;
 import org.redoubt.api.protocol.IProtocol;
 import org.redoubt.api.protocol.TransferContext;
 import org.redoubt.transport.TransportConstants;
+import org.redoubt.transport.http.AdmissionController;
+import org.redoubt.transport.http.AdmissionController.Admission;
 import org.redoubt.transport.http.HttpTransportSettings;
 import org.redoubt.util.FileSystemUtils;
+import org.redoubt.util.ThreadUtils;
 
+/**
+ * Receives AS2 requests. By default a request is read and processed on the Jetty thread
+ * serving it. In asynchronous mode the body is read as it arrives, without holding a
+ * thread, and the message is then processed on a pool sized for the CPU work, or on a
+ * virtual thread of its own when VirtualThreads is on. Requests that find no room for
+ * them - the pool's queue, or maxQueuedRequests messages on virtual threads - are
+ * refused with 503, as are those that haven't been
+ * read and taken up for processing within the timeout. A request whose processing has
+ * started is always answered by the processor, the container never times it out.
+ * <p>
+ * Before anything is read, the request has to be admitted for its AS2-From partner.
+ * Requests over the partner's rate or the transport's concurrency limit are refused
+ * with 503 and a Retry-After.
+ */
 public class As2HttpListener extends HttpServlet {
     private static final Logger sLogger = Logger.getLogger(As2HttpListener.class);
 	private static final long serialVersionUID = -9086455152129582063L;
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
 	private HttpTransportSettings settings;
 	private IProtocol protocol;
-	
+	private transient ExecutorService processors;
+	/* Bounds the messages handed to virtual threads, which have no queue to fill up */
+	private transient Semaphore virtualSlots;
+	private transient ScheduledThreadPoolExecutor timeouts;
+	private transient AdmissionController admissionController;
+
 	public As2HttpListener(HttpTransportSettings settings, IProtocol protocol) {
 		super();
 		this.settings = settings;
 		this.protocol = protocol;
 	}
 
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		admissionController = new AdmissionController(settings);
+		if(!settings.isAsyncProcessing()) {
+			return;
+		}
+
+		if(Factory.getInstance().getServerConfigurationManager().useVirtualThreads()) {
+			processors = ThreadUtils.newVirtualThreadPerTaskExecutor("As2Processor-" + settings.getName() + "-");
+			if(processors != null) {
+				virtualSlots = new Semaphore(settings.getMaxQueuedRequests());
+				sLogger.debug("AS2 requests of HTTP transport [" + settings.getName() + "] are processed on virtual threads.");
+			} else {
+				sLogger.warn("Virtual threads are not supported by this JVM, AS2 requests of HTTP transport [" + settings.getName() + 
+						"] are processed by [" + settings.getProcessingThreads() + "] threads instead.");
+			}
+		}
+		if(processors == null) {
+			int threads = settings.getProcessingThreads();
+			processors = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(settings.getMaxQueuedRequests()),
+					new ProcessorThreadFactory("As2Processor-" + settings.getName()), new ThreadPoolExecutor.AbortPolicy());
+		}
+		timeouts = new ScheduledThreadPoolExecutor(1, new ProcessorThreadFactory("As2RequestTimeout-" + settings.getName()));
+		timeouts.setRemoveOnCancelPolicy(true);
+	}
+
+	@Override
+	public void destroy() {
+		if(processors != null) {
+			processors.shutdown();
+			try {
+				if(!processors.awaitTermination(30, TimeUnit.SECONDS)) {
+					sLogger.warn("AS2 requests of HTTP transport [" + settings.getName() + "] are still being processed and will be abandoned.");
+					processors.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				processors.shutdownNow();
+			}
+			processors = null;
+			virtualSlots = null;
+			timeouts.shutdownNow();
+			timeouts = null;
+		}
+		super.destroy();
+	}
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-        Path workFile = FileSystemUtils.createWorkFile();
-        try {
-            FileSystemUtils.copyStreamToFile(req.getInputStream(), workFile);
-            sLogger.debug("An AS2 request has been persisted in the following file: " + workFile.toString());
-        } catch(IOException e) {
-            sLogger.error("An error has occured while persisting AS2 request to file system. " + e.getMessage(), e);
-            throw new IOException(e.getMessage(), e);
-        }
-        
-        FileSystemUtils.backupFile(workFile);
-        
-        TransferContext context = new TransferContext();
-        context.put(TransportConstants.CONTEXT_FULL_TARGET, workFile.toString());
-        
+    	String partner = getPartner(req);
+    	Admission admission = admissionController.admit(partner);
+    	if(!admission.isAdmitted()) {
+    		if(Admission.REASON_RATE.equals(admission.getRefusal())) {
+    			sLogger.warn("Partner [" + partner + "] is sending AS2 requests faster than allowed by HTTP transport [" + 
+    					settings.getName() + "]. The request is refused.");
+    		} else {
+    			sLogger.warn("Too many AS2 requests are being received by HTTP transport [" + settings.getName() + 
+    					"]. The request from partner [" + partner + "] is refused.");
+    		}
+    		refuse(resp, admission.getRetryAfterSeconds(), "Too many requests. Retry later.");
+    		return;
+    	}
+
+    	if(processors != null && req.isAsyncSupported()) {
+    		receiveAsync(req, resp, admission);
+    		return;
+    	}
+
+    	try {
+	        Path workFile = FileSystemUtils.createWorkFile();
+	        try {
+	            FileSystemUtils.copyStreamToFile(req.getInputStream(), workFile);
+	            sLogger.debug("An AS2 request has been persisted in the following file: " + workFile.toString());
+	        } catch(IOException e) {
+	            sLogger.error("An error has occured while persisting AS2 request to file system. " + e.getMessage(), e);
+	            throw new IOException(e.getMessage(), e);
+	        }
+
+	        process(workFile, readHeaders(req), resp);
+    	} finally {
+    		admission.release();
+    	}
+    }
+
+    /* AS2 names may be quoted */
+    private static String getPartner(HttpServletRequest req) {
+    	String partner = req.getHeader(As2HeaderDictionary.AS2_FROM);
+    	if(partner == null) {
+    		return "";
+    	}
+    	partner = partner.trim();
+    	if(partner.length() > 1 && partner.startsWith("\"") && partner.endsWith("\"")) {
+    		partner = partner.substring(1, partner.length() - 1);
+    	}
+    	return partner;
+    }
+
+    private static InternetHeaders readHeaders(HttpServletRequest req) {
         InternetHeaders headersMap = new InternetHeaders();
         Enumeration<String> en = req.getHeaderNames();
         while(en.hasMoreElements()) {
         	String hdr = en.nextElement();
         	headersMap.setHeader(hdr, req.getHeader(hdr));
         }
-        
+        return headersMap;
+    }
+
+    private void process(Path workFile, InternetHeaders headersMap, HttpServletResponse resp) throws IOException {
+        FileSystemUtils.backupFile(workFile);
+
+        TransferContext context = new TransferContext();
+        context.put(TransportConstants.CONTEXT_FULL_TARGET, workFile.toString());
         context.put(TransportConstants.CONTEXT_HEADER_MAP, headersMap);
         context.put(TransportConstants.CONTEXT_SERVLET_RESPONSE, resp);
-        
+
         try {
             protocol.process(context);
         } catch (Exception e) {
@@ -68,4 +200,343 @@ public class As2HttpListener extends HttpServlet {
         	}
         }
     }
+
+    private void receiveAsync(HttpServletRequest req, HttpServletResponse resp, Admission admission) throws IOException {
+    	/* Don't accept a body there will be no room to process */
+    	if(!hasRoomToProcess()) {
+    		admission.release();
+    		refuseQueued(resp);
+    		return;
+    	}
+
+    	/* The request is timed out here, so the container never completes it behind the processor's back */
+    	AsyncContext async = req.startAsync();
+    	async.setTimeout(0);
+
+    	Path workFile = FileSystemUtils.createWorkFile();
+    	FileChannel channel;
+    	try {
+    		channel = FileChannel.open(workFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    	} catch(IOException e) {
+    		admission.release();
+    		async.complete();
+    		sLogger.error("An error has occured while persisting AS2 request to file system. " + e.getMessage(), e);
+    		throw new IOException(e.getMessage(), e);
+    	}
+
+    	AsyncRequest request = new AsyncRequest(async, resp, readHeaders(req), workFile, channel, admission);
+    	async.addListener(request);
+    	request.timeout = timeouts.schedule(new RequestTimeout(request), settings.getAsyncTimeoutSeconds(), TimeUnit.SECONDS);
+
+    	ServletInputStream in = req.getInputStream();
+    	in.setReadListener(new RequestReader(request, in));
+    }
+
+    private boolean hasRoomToProcess() {
+    	if(virtualSlots != null) {
+    		return virtualSlots.availablePermits() > 0;
+    	}
+    	return ((ThreadPoolExecutor) processors).getQueue().remainingCapacity() > 0;
+    }
+
+    private void execute(RequestProcessor processor) {
+    	if(virtualSlots == null) {
+    		processors.execute(processor);
+    		return;
+    	}
+
+    	if(!virtualSlots.tryAcquire()) {
+    		throw new RejectedExecutionException("[" + settings.getMaxQueuedRequests() + "] AS2 requests are already being processed.");
+    	}
+    	try {
+    		processors.execute(processor);
+    	} catch(RejectedExecutionException e) {
+    		virtualSlots.release();
+    		throw e;
+    	}
+    }
+
+    private void refuseQueued(HttpServletResponse resp) throws IOException {
+    	sLogger.warn("Too many AS2 requests are waiting to be processed by HTTP transport [" + settings.getName() + "]. The request is refused.");
+    	refuse(resp, settings.getRetryAfterSeconds(), "Too many requests are waiting to be processed.");
+    }
+
+    private static void refuse(HttpServletResponse resp, int retryAfterSeconds, String message) throws IOException {
+    	resp.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+    	resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+    }
+
+    /**
+     * An asynchronous request, from reading its body until it has been answered. Whoever
+     * ends it - the processor, the timeout or an error - completes it and frees its admission.
+     * A request can only be cancelled before its processing starts.
+     */
+    private class AsyncRequest implements AsyncListener {
+    	private static final int READING = 0;
+    	private static final int QUEUED = 1;
+    	private static final int PROCESSING = 2;
+    	private static final int DONE = 3;
+
+    	private final AsyncContext async;
+    	private final HttpServletResponse resp;
+    	private final InternetHeaders headers;
+    	private final Path workFile;
+    	private final FileChannel channel;
+    	private final Admission admission;
+    	private volatile ScheduledFuture<?> timeout;
+    	private int state = READING;
+
+    	AsyncRequest(AsyncContext async, HttpServletResponse resp, InternetHeaders headers, Path workFile,
+    			FileChannel channel, Admission admission) {
+    		this.async = async;
+    		this.resp = resp;
+    		this.headers = headers;
+    		this.workFile = workFile;
+    		this.channel = channel;
+    		this.admission = admission;
+    	}
+
+    	synchronized boolean write(ByteBuffer data) throws IOException {
+    		if(state != READING) {
+    			return false;
+    		}
+    		while(data.hasRemaining()) {
+    			channel.write(data);
+    		}
+    		return true;
+    	}
+
+    	synchronized void queue() throws IOException {
+    		if(state != READING) {
+    			return;
+    		}
+    		channel.close();
+    		sLogger.debug("An AS2 request has been persisted in the following file: " + workFile.toString());
+
+    		try {
+    			execute(new RequestProcessor(this));
+    			state = QUEUED;
+    		} catch(RejectedExecutionException e) {
+    			state = DONE;
+    			FileSystemUtils.removeWorkFile(workFile);
+    			try {
+    				refuseQueued(resp);
+    			} finally {
+    				end();
+    			}
+    		}
+    	}
+
+    	synchronized boolean startProcessing() {
+    		if(state != QUEUED) {
+    			return false;
+    		}
+    		state = PROCESSING;
+    		return true;
+    	}
+
+    	synchronized void finish() {
+    		state = DONE;
+    		end();
+    		notifyAll();
+    	}
+
+    	/**
+    	 * Gives up on a request that is still being read or waiting for a processor.
+    	 * @return false if its processing has already started or it has already ended
+    	 */
+    	synchronized boolean cancel(int status, String message) {
+    		if(state != READING && state != QUEUED) {
+    			return false;
+    		}
+    		state = DONE;
+    		try {
+    			channel.close();
+    		} catch (IOException e) {
+    			sLogger.debug("Error while closing file [" + workFile + "]. " + e.getMessage(), e);
+    		}
+    		FileSystemUtils.removeWorkFile(workFile);
+
+    		try {
+    			if(!resp.isCommitted()) {
+    				if(status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+    					resp.setHeader("Retry-After", Integer.toString(settings.getRetryAfterSeconds()));
+    				}
+    				resp.sendError(status, message);
+    			}
+    		} catch (IOException | IllegalStateException e) {
+    			sLogger.debug("Unable to report the error to the sender. " + e.getMessage(), e);
+    		}
+    		end();
+    		return true;
+    	}
+
+    	private void end() {
+    		if(timeout != null) {
+    			timeout.cancel(false);
+    		}
+    		/* Freed first, the sender may send its next request as soon as this one is answered */
+    		admission.release();
+    		complete(async);
+    	}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			Throwable t = event.getThrowable();
+			sLogger.error("An error has occured while receiving an AS2 request. " + (t == null ? "" : t.getMessage()), t);
+			if(cancel(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "The request could not be received.")) {
+				return;
+			}
+
+			/* The container recycles the response once this returns, the processor must be done with it by then */
+			synchronized(this) {
+				boolean interrupted = false;
+				while(state != DONE) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if(interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			/* Not expected, the container's timeout is off */
+			onError(event);
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+    }
+
+    private class RequestTimeout implements Runnable {
+    	private final AsyncRequest request;
+
+    	RequestTimeout(AsyncRequest request) {
+    		this.request = request;
+    	}
+
+		@Override
+		public void run() {
+			if(request.cancel(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The request has not been processed in time. Retry later.")) {
+				sLogger.warn("An AS2 request has not been received and taken up for processing by HTTP transport [" + settings.getName() +
+						"] within [" + settings.getAsyncTimeoutSeconds() + "] seconds. The request is refused.");
+			}
+		}
+    }
+
+    /**
+     * Writes the body to the work file whenever a part of it has arrived. Once it is
+     * complete the message is queued for processing.
+     */
+    private class RequestReader implements ReadListener {
+    	private final AsyncRequest request;
+    	private final ServletInputStream in;
+    	private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+    	RequestReader(AsyncRequest request, ServletInputStream in) {
+    		this.request = request;
+    		this.in = in;
+    	}
+
+		@Override
+		public void onDataAvailable() throws IOException {
+			int read;
+			while(in.isReady() && (read = in.read(buffer)) != -1) {
+				if(!request.write(ByteBuffer.wrap(buffer, 0, read))) {
+					/* Cancelled, the rest of the body is dropped */
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void onAllDataRead() throws IOException {
+			request.queue();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			sLogger.error("An error has occured while persisting AS2 request to file system. " + t.getMessage(), t);
+			request.cancel(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "The request could not be received.");
+		}
+    }
+
+    private class RequestProcessor implements Runnable {
+    	private final AsyncRequest request;
+
+    	RequestProcessor(AsyncRequest request) {
+    		this.request = request;
+    	}
+
+		@Override
+		public void run() {
+			try {
+				processRequest();
+			} finally {
+				if(virtualSlots != null) {
+					virtualSlots.release();
+				}
+			}
+		}
+
+		private void processRequest() {
+			if(!request.startProcessing()) {
+				/* Timed out while queued */
+				return;
+			}
+
+			try {
+				process(request.workFile, request.headers, request.resp);
+			} catch (IOException | RuntimeException e) {
+				if(e instanceof RuntimeException) {
+					sLogger.error("An error has occured while processing inbound AS2 message. " + e.getMessage(), e);
+				}
+				try {
+					if(!request.resp.isCommitted()) {
+						request.resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+					}
+				} catch (IOException | IllegalStateException ex) {
+					sLogger.debug("Unable to report the error to the sender. " + ex.getMessage(), ex);
+				}
+			} finally {
+				request.finish();
+			}
+		}
+    }
+
+    private static void complete(AsyncContext async) {
+    	try {
+    		async.complete();
+    	} catch (IllegalStateException e) {
+    		/* Completed by the container after an error */
+    		sLogger.debug("An AS2 request has already been completed. " + e.getMessage());
+    	}
+    }
+
+    private static class ProcessorThreadFactory implements ThreadFactory {
+    	private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		ProcessorThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+    }
 }
@@ -1,5 +1,6 @@
 package org.redoubt.protocol.as2;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,32 +9,38 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
 import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
-import javax.mail.util.ByteArrayDataSource;
 
 import org.apache.log4j.Logger;
 import org.redoubt.api.configuration.ICertificateManager;
 import org.redoubt.api.configuration.ICryptoHelper;
 import org.redoubt.api.configuration.IPartyManager;
+import org.redoubt.api.configuration.SecurityOptions;
 import org.redoubt.api.factory.Factory;
 import org.redoubt.api.protocol.IMdnMonitor;
 import org.redoubt.api.protocol.IMessage;
 import org.redoubt.api.protocol.IProtocolSettings;
+import org.redoubt.api.protocol.MonitoredMessage;
 import org.redoubt.application.VersionInformation;
 import org.redoubt.application.configuration.ConfigurationConstants;
-import org.redoubt.application.configuration.Party;
+import org.redoubt.application.configuration.PartyProfile;
 import org.redoubt.protocol.ProtocolException;
 import org.redoubt.protocol.as2.mdn.As2MdnMessage;
 import org.redoubt.protocol.as2.mdn.Disposition;
+import org.redoubt.util.FileMimeBodyPart;
 import org.redoubt.util.FileSystemUtils;
+import org.redoubt.util.MicOutputStream;
 import org.redoubt.util.Utils;
 
 public class As2Message implements IMessage {
@@ -58,6 +65,7 @@ public class As2Message implements IMessage {
 	protected boolean requestSignedMdn;
 	protected String mdnSigningAlgorithm;
 	protected Disposition disposition;
+	protected boolean streaming;
 	
 	protected Map<String, String> headers;
 	
@@ -67,31 +75,43 @@ public class As2Message implements IMessage {
 	protected String fromEmail;
 	protected String mic;
 	
-	protected Party localParty;
-	protected Party remoteParty;
+	protected PartyProfile localParty;
+	protected PartyProfile remoteParty;
+	
+	private List<Closeable> resources;
 	
 	public As2Message() {
 		data = new MimeBodyPart();
 		headers = new HashMap<String, String>();
 		disposition = new Disposition();
+		resources = new ArrayList<Closeable>();
 	}
 	
+	/**
+	 * Creates an outbound message for a raw payload. The payload is streamed 
+	 * from the file whenever the message is written and is never loaded in memory.
+	 */
 	public As2Message(Path payload, InternetHeaders internetHeaders) throws MessagingException, IOException {
-		data = new MimeBodyPart();
-		headers = new HashMap<String, String>();
-		disposition = new Disposition();
+		this();
 		
-		// TODO: add support for large files
-		data.setDataHandler(new DataHandler(new ByteArrayDataSource(Files.readAllBytes(payload), 
-				As2HeaderDictionary.MIME_TYPE_APPLICATION_OCTET_STREAM)));
+		data.setDataHandler(new DataHandler(new FileDataSource(payload.toFile())));
 		
 		populateHeaders(internetHeaders);
 	}
 	
 	public As2Message(byte[] content, InternetHeaders internetHeaders) throws MessagingException {
+		this();
 		data = new MimeBodyPart(internetHeaders, content);
-		headers = new HashMap<String, String>();
-		disposition = new Disposition();
+		
+		populateHeaders(internetHeaders);
+	}
+	
+	/**
+	 * Creates an inbound message whose MIME content is read from a file.
+	 */
+	public As2Message(FileMimeBodyPart content, InternetHeaders internetHeaders) throws MessagingException {
+		this();
+		data = track(content);
 		
 		populateHeaders(internetHeaders);
 	}
@@ -114,6 +134,7 @@ public class As2Message implements IMessage {
 		
 		fromAddress= as2Settings.getFrom();
 		toAddress = as2Settings.getTo();
+		streaming = as2Settings.isStreamingEnabled();
 		
 		resolveParties(toAddress, fromAddress);
 		
@@ -159,7 +180,6 @@ public class As2Message implements IMessage {
         headers.put(As2HeaderDictionary.AS2_FROM, fromAddress);
         headers.put(As2HeaderDictionary.AS2_TO, toAddress);
         headers.put(As2HeaderDictionary.AS2_VERSION, As2HeaderDictionary.AS2_VERSION_1_1);
-        headers.put(As2HeaderDictionary.CONNECTION, "close");
         headers.put(As2HeaderDictionary.USER_AGENT, As2HeaderDictionary.USER_AGENT_REDOUBT);
         headers.put(As2HeaderDictionary.ACCEPT_ENCODING, "gzip,deflate");
         headers.put(As2HeaderDictionary.MIME_VERSION, As2HeaderDictionary.MIME_VERSION_1_0);
@@ -174,7 +194,12 @@ public class As2Message implements IMessage {
 	}
 	
 	protected void secure() throws Exception {
-        ICertificateManager certificateManager = Factory.getInstance().getCertificateManager();
+		if(streaming) {
+			secureStreaming();
+			return;
+		}
+		
+        ICertificateManager certificateManager = Factory.getInstance().getCertificateManager().getSnapshot();
         ICryptoHelper cryptoHelper = Factory.getInstance().getCryptoHelper();
         
         if(!(this instanceof As2MdnMessage)) {
@@ -215,7 +240,56 @@ public class As2Message implements IMessage {
         }
     }
 	
-	protected void prepreOutboundMdnOptions() {
+	/**
+	 * Applies all layers in a single pass, straight to a work file that backs the 
+	 * resulting data. The MIC is calculated along the way.
+	 */
+	protected void secureStreaming() throws Exception {
+		ICertificateManager certificateManager = Factory.getInstance().getCertificateManager().getSnapshot();
+        ICryptoHelper cryptoHelper = Factory.getInstance().getCryptoHelper();
+        
+        boolean micRequired = mdnRequested && !(this instanceof As2MdnMessage);
+        
+        if(!compress && !sign && !encrypt) {
+        	if(micRequired) {
+        		calculateMIC(false);
+        	}
+        	return;
+        }
+        
+        SecurityOptions options = new SecurityOptions();
+        
+        if(compress) {
+        	sLogger.debug("Compression is enabled - the message will be compressed.");
+        	options.setCompressionAlgorithm(compressionAlgorithm);
+        }
+        
+        if(sign) {
+        	sLogger.debug("Signing is enabled - the message will be signed.");
+        	options.setSignCertificate(certificateManager.getX509Certificate(signCertAlias));
+        	options.setSignKey(certificateManager.getPrivateKey(signCertAlias, signCertKeyPassword.toCharArray()));
+        	options.setSignDigestAlgorithm(signDigestAlgorithm);
+        }
+        
+        if(encrypt) {
+        	sLogger.debug("Encryption is enabled - the message will be encrypted.");
+        	options.setEncryptCertificate(certificateManager.getX509Certificate(encryptCertAlias));
+        	options.setEncryptAlgorithm(encryptAlgorithm);
+        }
+        
+        if(micRequired) {
+        	options.setMicAlgorithm(resolveMicAlgorithm());
+        }
+        
+        data = track(cryptoHelper.secure(data, FileSystemUtils.createWorkFile(), options));
+        
+        if(micRequired) {
+        	mic = options.getMic();
+        	sLogger.debug("MIC for message with Id [" + messageId + "] is [" + mic + "].");
+        }
+	}
+	
+	protected void prepreOutboundMdnOptions() throws Exception {
 		if(mdnRequested) {
         	sLogger.debug("MDN is requested - adding appropriate headers.");
         	headers.put(As2HeaderDictionary.DISPOSITION_NOTIFICATION_TO, fromEmail);
@@ -225,12 +299,14 @@ public class As2Message implements IMessage {
         	}
         	
         	if(requestSignedMdn) {
+        		/* The RFC names the digests as in micalg, e.g. "sha-256" */
+        		String micalg = Factory.getInstance().getCryptoHelper().getMicalgParameter(resolveMicAlgorithm());
         		headers.put(As2HeaderDictionary.DISPOSITION_NOTIFICATION_OPTIONS, 
-        				"signed-receipt-protocol=optional, pkcs7-signature; signed-receipt-micalg=optional, " + mdnSigningAlgorithm);
+        				"signed-receipt-protocol=optional, pkcs7-signature; signed-receipt-micalg=optional, " + micalg);
         	}
         	
         	IMdnMonitor mdnMonitor = Factory.getInstance().getMdnMonitor();
-        	mdnMonitor.registerMessage(mic, this);
+        	mdnMonitor.registerMessage(new MonitoredMessage(messageId, mic, messageDate, toAddress, System.currentTimeMillis()));
         }
 	}
 	
@@ -238,6 +314,7 @@ public class As2Message implements IMessage {
 	public void unpackageMessage(IProtocolSettings settings) throws Exception {
 		As2ProtocolSettings as2Settings = (As2ProtocolSettings) settings;
 		sLogger.debug("Unpackaging As2 message...");
+		streaming = as2Settings.isStreamingEnabled();
 		
 		prepreInboundMdnOptions();
 		
@@ -287,7 +364,7 @@ public class As2Message implements IMessage {
 	}
 	
 	protected void decryptAndVerify(boolean encryptionEnforced, boolean signingEnforced) throws Exception {
-    	ICertificateManager certificateManager = Factory.getInstance().getCertificateManager();
+    	ICertificateManager certificateManager = Factory.getInstance().getCertificateManager().getSnapshot();
     	ICryptoHelper cryptoHelper = Factory.getInstance().getCryptoHelper();
     	
     	boolean messageIsEncrypted = cryptoHelper.isEncrypted(data);
@@ -298,7 +375,11 @@ public class As2Message implements IMessage {
             X509Certificate receiverCert = certificateManager.getX509Certificate(encryptCertAlias);
             PrivateKey receiverKey = certificateManager.getPrivateKey(encryptCertAlias, encryptCertKeyPassword.toCharArray());
             try {
-            	data = cryptoHelper.decrypt(data, receiverCert, receiverKey);
+            	if(streaming) {
+            		data = track(cryptoHelper.decrypt(data, receiverCert, receiverKey, FileSystemUtils.createWorkFile()));
+            	} else {
+            		data = cryptoHelper.decrypt(data, receiverCert, receiverKey);
+            	}
 		    } catch(Exception e) {
 	        	disposition.setStatus(Disposition.DISP_DECRYPTION_FAILED);
 	        	sLogger.error("An error has occured while decrypting message. " + e.getMessage());
@@ -320,7 +401,17 @@ public class As2Message implements IMessage {
 	
    			X509Certificate senderCert = certificateManager.getX509Certificate(signCertAlias);
    			try {
-   				data = cryptoHelper.verify(data, senderCert);
+   				if(streaming) {
+   					/* The signer has already digested the signed content - reuse it as MIC if it can */
+   					SecurityOptions options = new SecurityOptions();
+   					if(!(this instanceof As2MdnMessage)) {
+   						options.setMicAlgorithm(resolveMicAlgorithm());
+   					}
+   					data = cryptoHelper.verify(data, senderCert, FileSystemUtils.createWorkFile(), options);
+   					mic = options.getMic();
+   				} else {
+   					data = cryptoHelper.verify(data, senderCert);
+   				}
    			} catch(Exception e) {
             	disposition.setStatus(Disposition.DISP_SIGNATURE_FAILED);
             	sLogger.error("An error has occured while verifying message signature. " + e.getMessage());
@@ -339,14 +430,18 @@ public class As2Message implements IMessage {
    		boolean isCompressed = cryptoHelper.isCompressed(data);
    		
    		if(!(this instanceof As2MdnMessage)) {
-            if(messageIsSigned) {
+            if(messageIsSigned && mic == null) {
                 calculateMIC(true);
             }
         }
    		
    		if (isCompressed) {
    			sLogger.debug("Message is compressed - will attempt to decompress it.");
-   			data = cryptoHelper.decompress(data);
+   			if(streaming) {
+   				data = track(cryptoHelper.decompress(data, FileSystemUtils.createWorkFile()));
+   			} else {
+   				data = cryptoHelper.decompress(data);
+   			}
    			sLogger.debug("Message is decompressed.");
    		}
    		
@@ -375,31 +470,39 @@ public class As2Message implements IMessage {
         	String dispositionNotificationOptions = headers.get(As2HeaderDictionary.DISPOSITION_NOTIFICATION_OPTIONS);
         	if(!Utils.isNullOrEmptyTrimmed(dispositionNotificationOptions)) {
         		requestSignedMdn = true;
-        		String micAlg = ICryptoHelper.DIGEST_SHA1;
-        		
-        		if(dispositionNotificationOptions.startsWith("signed-receipt-protocol=optional, pkcs7-signature; signed-receipt-micalg=optional,")) {
-        			int startIndex = dispositionNotificationOptions.lastIndexOf("signed-receipt-protocol=optional, pkcs7-signature; signed-receipt-micalg=optional,");
-        			String micAlgList = dispositionNotificationOptions.substring(startIndex).trim();
-        			if(micAlgList.contains(",")) {
-        				/* Means that more than a single mic alg is set - just get the first one */
-        				for(String str : micAlgList.split(",")) {
-        					if(str.equals(ICryptoHelper.DIGEST_SHA1) || str.equals(ICryptoHelper.DIGEST_MD5)) {
-        						micAlg = str;
-        					}
-        				}
-        			} else {
-        				if(micAlgList.equals(ICryptoHelper.DIGEST_SHA1) || micAlgList.equals(ICryptoHelper.DIGEST_MD5)) {
-    						micAlg = micAlgList;
-    					}
-        			}
-        			
-        		}
-        		
-        		mdnSigningAlgorithm = micAlg;
+        		mdnSigningAlgorithm = negotiateMicAlgorithm(dispositionNotificationOptions);
         	}
         }
 	}
 	
+	/**
+	 * Picks the first supported algorithm of the signed-receipt-micalg parameter, e.g. 
+	 * "signed-receipt-protocol=optional, pkcs7-signature; signed-receipt-micalg=optional, sha-256, sha1".
+	 * The first value of a parameter is its importance, the rest are in order of preference.
+	 */
+	protected String negotiateMicAlgorithm(String dispositionNotificationOptions) {
+		ICryptoHelper cryptoHelper = Factory.getInstance().getCryptoHelper();
+		
+		for(String parameter : dispositionNotificationOptions.split(";")) {
+			int separator = parameter.indexOf('=');
+			if(separator < 0 || !"signed-receipt-micalg".equalsIgnoreCase(parameter.substring(0, separator).trim())) {
+				continue;
+			}
+			
+			String[] values = parameter.substring(separator + 1).split(",");
+			for(int i = 1; i < values.length; i++) {
+				String micAlg = cryptoHelper.resolveDigestAlgorithm(values[i]);
+				if(micAlg != null) {
+					return micAlg;
+				}
+			}
+			sLogger.warn("None of the MIC algorithms requested in [" + dispositionNotificationOptions + "] is supported. Will use [" + 
+					ICryptoHelper.DIGEST_SHA1 + "] instead.");
+		}
+		
+		return ICryptoHelper.DIGEST_SHA1;
+	}
+	
 	public void resolveParties(String remotePartyId, String localPartyId) throws ProtocolException {
 		if(remotePartyId == null || localPartyId == null) {
 			disposition.setStatus(Disposition.DISP_AUTHENTICATION_FAILED);
@@ -407,13 +510,13 @@ public class As2Message implements IMessage {
 		}
 		
 		IPartyManager partyManager = Factory.getInstance().getPartyManager();
-		localParty = partyManager.getPartyById(localPartyId);
+		localParty = partyManager.getProfileById(localPartyId);
 		if(localParty == null) {
 			disposition.setStatus(Disposition.DISP_AUTHENTICATION_FAILED);
 			throw new ProtocolException("There's no local party for party id [" + localPartyId + "].");
 		}
 		
-		remoteParty = partyManager.getPartyById(remotePartyId);
+		remoteParty = partyManager.getProfileById(remotePartyId);
 		if(remoteParty == null) {
 			disposition.setStatus(Disposition.DISP_AUTHENTICATION_FAILED);
 			throw new ProtocolException("There's no remote party for party id [" + remotePartyId + "].");
@@ -452,38 +555,84 @@ public class As2Message implements IMessage {
 	protected String calculateMIC(boolean headers) throws Exception {
 		ICryptoHelper cryptoHelper = Factory.getInstance().getCryptoHelper();
 		
-		if(Utils.isNullOrEmptyTrimmed(mdnSigningAlgorithm)) {
-            mdnSigningAlgorithm = ICryptoHelper.DIGEST_SHA1;
-        }
-		
-		Path workFile = FileSystemUtils.createWorkFile();
-		
-		if(headers) {
-			writeMimeDataAndHeadersToFile(workFile);
-		} else {
-			writeMimeDataToFile(workFile);
+		/* Digest the data as it is serialised, without writing it out first */
+		try (MicOutputStream micOut = cryptoHelper.createMICStream(null, resolveMicAlgorithm())) {
+			if(headers) {
+				data.writeTo(micOut);
+			} else {
+				try (InputStream in = data.getInputStream()) {
+					FileSystemUtils.copyStreamToStream(in, micOut);
+				}
+			}
+			
+			mic = micOut.getMic();
 		}
 		
-		mic = cryptoHelper.calculateMIC(workFile, mdnSigningAlgorithm);
-		
 		sLogger.debug("MIC for message with Id [" + messageId + "] is [" + mic + "].");
-		FileSystemUtils.removeWorkFile(workFile);
 		
 		return mic;
 	}
 	
+	protected String resolveMicAlgorithm() {
+		if(Utils.isNullOrEmptyTrimmed(mdnSigningAlgorithm)) {
+            mdnSigningAlgorithm = ICryptoHelper.DIGEST_SHA1;
+        }
+		
+		return mdnSigningAlgorithm;
+	}
+	
 	public void writeMimeDataToFile(Path file) throws IOException, MessagingException {
 		try (InputStream in = data.getInputStream()) {
 			Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
 		}
     }
 	
+	/**
+	 * Same as {@link #writeMimeDataToFile(Path)}, except that data which has been 
+	 * packaged in a work file of its own is moved to the file instead of copied.
+	 */
+	public void moveMimeDataToFile(Path file) throws IOException, MessagingException {
+		String encoding = data.getEncoding();
+		boolean encoded = encoding != null && !As2HeaderDictionary.TRANSFER_ENCODING_BINARY.equalsIgnoreCase(encoding) &&
+				!"7bit".equalsIgnoreCase(encoding) && !"8bit".equalsIgnoreCase(encoding);
+		
+		if(!encoded && data instanceof FileMimeBodyPart && ((FileMimeBodyPart) data).isTemporary()) {
+			((FileMimeBodyPart) data).moveFile(file);
+		} else {
+			writeMimeDataToFile(file);
+		}
+	}
+	
 	public void writeMimeDataAndHeadersToFile(Path file) throws IOException, MessagingException {
 		try (OutputStream out = Files.newOutputStream(file)) {
 			data.writeTo(out);
 		}
     }
 	
+	/* Parts backed by work files of their own are released along with the message */
+	private MimeBodyPart track(MimeBodyPart part) {
+		if(part instanceof Closeable) {
+			resources.add((Closeable) part);
+		}
+		
+		return part;
+	}
+	
+	/**
+	 * Releases all files backing the content of this message. 
+	 */
+	public void dispose() {
+		for(Closeable resource : resources) {
+			try {
+				resource.close();
+			} catch (IOException e) {
+				sLogger.error("An error has occured while releasing message resources. " + e.getMessage(), e);
+			}
+		}
+		
+		resources.clear();
+	}
+	
 	public Disposition getDisposition() {
 		return disposition;
 	}
@@ -492,19 +641,19 @@ public class As2Message implements IMessage {
 		this.disposition = disposition;
 	}
 
-	public Party getLocalParty() {
+	public PartyProfile getLocalParty() {
 		return localParty;
 	}
 
-	public void setLocalParty(Party localParty) {
+	public void setLocalParty(PartyProfile localParty) {
 		this.localParty = localParty;
 	}
 
-	public Party getRemoteParty() {
+	public PartyProfile getRemoteParty() {
 		return remoteParty;
 	}
 
-	public void setRemoteParty(Party remoteParty) {
+	public void setRemoteParty(PartyProfile remoteParty) {
 		this.remoteParty = remoteParty;
 	}
 
@@ -3,8 +3,8 @@ package org.redoubt.protocol.as2;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
-import java.util.Timer;
 
 import javax.mail.internet.InternetHeaders;
 import javax.servlet.http.HttpServletResponse;
@@ -12,12 +12,17 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.log4j.Logger;
 import org.redoubt.api.protocol.TransferContext;
 import org.redoubt.application.configuration.ConfigurationConstants;
+import org.redoubt.application.configuration.PartyProfile;
 import org.redoubt.protocol.BaseProtocol;
 import org.redoubt.protocol.ProtocolException;
 import org.redoubt.protocol.as2.mdn.As2MdnMessage;
-import org.redoubt.protocol.as2.mdn.AsynchronousMdnSender;
+import org.redoubt.protocol.as2.mdn.AsynchronousMdnScheduler;
+import org.redoubt.protocol.as2.mdn.MdnClassifier;
 import org.redoubt.protocol.as2.mdn.MdnException;
+import org.redoubt.protocol.as2.mdn.MdnTimeoutSweeper;
 import org.redoubt.transport.TransportConstants;
+import org.redoubt.transport.http.HttpResponseUtils;
+import org.redoubt.util.FileMimeBodyPart;
 import org.redoubt.util.FileSystemUtils;
 
 public class As2Protocol extends BaseProtocol {
@@ -37,22 +42,29 @@ public class As2Protocol extends BaseProtocol {
 	        
 	        InternetHeaders headers = (InternetHeaders) context.get(TransportConstants.CONTEXT_HEADER_MAP);
 
-	        /* Assume this is an asynchronous MDN. If this is a regular 
-	         * As2 Message an MdnException will be generated and normal 
-	         * As2 processing will start */
-	        message = new As2MdnMessage(Files.readAllBytes(workFile), headers);
+	        if(MdnClassifier.isMdn(headers, workFile)) {
+	        	message = new As2MdnMessage(new FileMimeBodyPart(headers, workFile), headers);
+	        } else {
+	        	message = new As2Message(new FileMimeBodyPart(headers, workFile), headers);
+	        }
 	        
 	        try {
 	        	message.unpackageMessage(settings);
 	        } catch(MdnException e) {
-	        	message = new As2Message(Files.readAllBytes(workFile), headers);
+	        	/* Looked like an MDN, but its content says otherwise - 
+	        	 * continue with normal As2 processing */
+	        	message.dispose();
+	        	message = new As2Message(new FileMimeBodyPart(headers, workFile), headers);
 	        	message.unpackageMessage(settings);
 	        }
 	        
-	        message.writeMimeDataToFile(workFile);
-	        
 	        Path productionFile = Paths.get(productionFolder.toString(), workFile.getFileName().toString());
-	        message.writeMimeDataToFile(productionFile);
+	        message.moveMimeDataToFile(productionFile);
+	        
+	        /* The content may still be read from the work file - release it before replacing 
+	         * the work file with the unpackaged data */
+	        message.dispose();
+	        Files.copy(productionFile, workFile, StandardCopyOption.REPLACE_EXISTING);
 	        
         } catch(ProtocolException e) {
         	sLogger.error("An error has occured while unpackaging As2 message. " + e.getMessage(), e);
@@ -61,8 +73,12 @@ public class As2Protocol extends BaseProtocol {
             sLogger.error("An error has occured while unpackaging As2 message. " + e.getMessage(), e);
             throw new ProtocolException(e.getMessage(), e);
         } finally {
-        	if(message != null && message.isMdnReqested()) {
-        		sendMdn(message, context);
+        	if(message != null) {
+        		message.dispose();
+        		
+        		if(message.isMdnReqested()) {
+        			sendMdn(message, context);
+        		}
 	        }
         }
     }
@@ -76,7 +92,8 @@ public class As2Protocol extends BaseProtocol {
         	
         	Path workFile = FileSystemUtils.createWorkFile();
         	mdn.packageMessage(settings);
-        	mdn.writeMimeDataToFile(workFile);
+        	mdn.moveMimeDataToFile(workFile);
+        	mdn.dispose();
         	
     		Map<String, String> mdnHeaders = mdn.getHeaders();
         		
@@ -88,12 +105,11 @@ public class As2Protocol extends BaseProtocol {
     	        for (Map.Entry<String, String> entry : mdnHeaders.entrySet()) {
     	    		resp.setHeader(entry.getKey(), entry.getValue());
     	    	}
-    	        FileSystemUtils.copyFileToStream(workFile, resp.getOutputStream());
+    	        resp.setContentLengthLong(Files.size(workFile));
+    	        HttpResponseUtils.sendFile(workFile, resp);
     	        FileSystemUtils.removeWorkFile(workFile);
             } else if(ConfigurationConstants.MDN_TYPE_ASYNCHRONOUS.equals(mdnType)) {
-            	Timer timer = new Timer();
-            	AsynchronousMdnSender mdnSender = new AsynchronousMdnSender(workFile, mdnHeaders, mdn.getAsynchronousMdnUrl());
-            	timer.schedule(mdnSender, ConfigurationConstants.MDN_ASYNCHRONOUS_DELAY);
+            	AsynchronousMdnScheduler.schedule(workFile, mdnHeaders, mdn.getAsynchronousMdnUrl());
             }
             	
         	return;
@@ -106,9 +122,9 @@ public class As2Protocol extends BaseProtocol {
     @Override
     public void send(TransferContext context) throws ProtocolException {
         As2ProtocolSettings settings = (As2ProtocolSettings) getSettings();
+        Path retainedPayload = null;
+        As2Message message = null;
         try {
-        	As2Message message = null;
-        	
         	String fullTarget = (String) context.get(TransportConstants.CONTEXT_FULL_TARGET);
         	Path workFile = Paths.get(fullTarget);
         	
@@ -116,14 +132,39 @@ public class As2Protocol extends BaseProtocol {
             
             message = new As2Message(workFile, null);
         	message.packageMessage(settings);
-        	message.writeMimeDataToFile(workFile);
+        	
+        	/* The payload is streamed from the work file while it is being packaged, 
+        	 * so the packaged data can't be written over it directly */
+        	Path packagedFile = FileSystemUtils.createWorkFile();
+        	message.moveMimeDataToFile(packagedFile);
+        	message.dispose();
+        	
+        	PartyProfile localParty = message.getLocalParty();
+        	if(message.isMdnReqested() && localParty.getMdnTimeoutSeconds() > 0) {
+        		/* Keep the original payload in case it has to be sent again */
+        		retainedPayload = MdnTimeoutSweeper.retainPayload(workFile, message.getMessageId(), 
+        				(String) context.get(TransportConstants.CONTEXT_ORIGINAL_FILE_NAME));
+        	}
+        	FileSystemUtils.moveFile(packagedFile, workFile, true);
         	
         	FileSystemUtils.checkAs2SizeRestrictions(workFile);
             
             HttpClientUtils.sendPostRequest(this, workFile, message.getHeaders(), settings.getUrl());
+            
+            if(retainedPayload != null) {
+            	Integer attempt = (Integer) context.get(TransportConstants.CONTEXT_MDN_RESEND_ATTEMPT);
+            	MdnTimeoutSweeper.watch(message.getMessageId(), retainedPayload, 
+            			(String) context.get(TransportConstants.CONTEXT_ORIGINAL_FILE_NAME), this, 
+            			localParty.getMdnTimeoutSeconds(), localParty.getMdnResendAttempts(), attempt == null ? 0 : attempt);
+            	retainedPayload = null;
+            }
         }  catch (Exception e) {
             sLogger.error("An error has occured while packaging As2 message. " + e.getMessage(), e);
             throw new ProtocolException(e.getMessage(), e);
+        } finally {
+        	if(retainedPayload != null) {
+        		MdnTimeoutSweeper.discardPayload(message.getMessageId(), retainedPayload);
+        	}
         }
         
     }
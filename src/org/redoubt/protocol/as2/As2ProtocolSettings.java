@@ -14,6 +14,10 @@ public class As2ProtocolSettings extends SettingsHolder implements IProtocolSett
 		//Set default values
 		put(As2ProtocolSettingsKeyring.ENFORCE_SIGNING, Boolean.toString(false));
 		put(As2ProtocolSettingsKeyring.ENFORCE_ENCRYPTION, Boolean.toString(false));
+		put(As2ProtocolSettingsKeyring.STREAMING, Boolean.toString(false));
+		put(As2ProtocolSettingsKeyring.MAX_CONNECTIONS_PER_ROUTE, Integer.toString(10));
+		put(As2ProtocolSettingsKeyring.KEEP_ALIVE_SECONDS, Integer.toString(30));
+		put(As2ProtocolSettingsKeyring.CHUNKED, Boolean.toString(false));
 	}
 
 	@Override
@@ -70,6 +74,51 @@ public class As2ProtocolSettings extends SettingsHolder implements IProtocolSett
     	put(As2ProtocolSettingsKeyring.ENFORCE_SIGNING, Boolean.toString(enforce));
     }
     
+    /**
+     * @return whether outbound messages are compressed, signed and encrypted in a single 
+     * streaming pass straight to disk instead of layer by layer in memory
+     */
+    public boolean isStreamingEnabled() {
+    	return Boolean.parseBoolean((String) get(As2ProtocolSettingsKeyring.STREAMING));
+    }
+    
+    public void setStreamingEnabled(boolean streaming) {
+    	put(As2ProtocolSettingsKeyring.STREAMING, Boolean.toString(streaming));
+    }
+    
+    /**
+     * @return the number of pooled connections kept open to the partner URL
+     */
+    public int getMaxConnectionsPerRoute() {
+    	return Integer.parseInt((String) get(As2ProtocolSettingsKeyring.MAX_CONNECTIONS_PER_ROUTE));
+    }
+    
+    public void setMaxConnectionsPerRoute(int maxConnections) {
+    	put(As2ProtocolSettingsKeyring.MAX_CONNECTIONS_PER_ROUTE, Integer.toString(maxConnections));
+    }
+    
+    /**
+     * @return how long an idle connection to the partner is kept, unless the partner says otherwise
+     */
+    public int getKeepAliveSeconds() {
+    	return Integer.parseInt((String) get(As2ProtocolSettingsKeyring.KEEP_ALIVE_SECONDS));
+    }
+    
+    public void setKeepAliveSeconds(int keepAlive) {
+    	put(As2ProtocolSettingsKeyring.KEEP_ALIVE_SECONDS, Integer.toString(keepAlive));
+    }
+    
+    /**
+     * @return whether messages are posted with chunked transfer encoding instead of a Content-Length
+     */
+    public boolean isChunked() {
+    	return Boolean.parseBoolean((String) get(As2ProtocolSettingsKeyring.CHUNKED));
+    }
+    
+    public void setChunked(boolean chunked) {
+    	put(As2ProtocolSettingsKeyring.CHUNKED, Boolean.toString(chunked));
+    }
+    
     public Path getProductionFolder() {
         return Paths.get((String) get(As2ProtocolSettingsKeyring.PRODUCTION_FOLDER));
     }
@@ -86,6 +135,10 @@ public class As2ProtocolSettings extends SettingsHolder implements IProtocolSett
         public static final String PRODUCTION_FOLDER = "productionFolder";
         public static final String ENFORCE_SIGNING = "enforceSigning";
         public static final String ENFORCE_ENCRYPTION = "enforceEncryption";
+        public static final String STREAMING = "streaming";
+        public static final String MAX_CONNECTIONS_PER_ROUTE = "maxConnectionsPerRoute";
+        public static final String KEEP_ALIVE_SECONDS = "keepAliveSeconds";
+        public static final String CHUNKED = "chunked";
     }
 
 }
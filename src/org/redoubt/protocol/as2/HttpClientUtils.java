@@ -1,58 +1,171 @@
 package org.redoubt.protocol.as2;
 
-import java.nio.file.Files;
+import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.redoubt.api.protocol.IProtocol;
 import org.redoubt.protocol.as2.mdn.As2MdnResponseHandler;
 
+/**
+ * Sends As2 messages and MDNs over a single pooled client, so connections to a
+ * partner are kept alive and reused across messages. The pool limits and the
+ * keep-alive of each partner URL come from the settings of its transport.
+ */
 public class HttpClientUtils {
     private static final Logger sLogger = Logger.getLogger(HttpClientUtils.class);
     
+    private static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 50;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+    /* Pooled connections idle for longer than this are checked before being reused */
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+    
+    private static final PoolingHttpClientConnectionManager sConnectionManager;
+    private static final CloseableHttpClient sHttpClient;
+    private static final Map<HttpHost, Integer> sRouteLimits = new ConcurrentHashMap<HttpHost, Integer>();
+    private static final Map<HttpHost, Long> sKeepAlive = new ConcurrentHashMap<HttpHost, Long>();
+    
+    static {
+    	sConnectionManager = new PoolingHttpClientConnectionManager();
+    	sConnectionManager.setMaxTotal(DEFAULT_MAX_TOTAL_CONNECTIONS);
+    	sConnectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+    	
+    	sHttpClient = HttpClients.custom()
+    			.setConnectionManager(sConnectionManager)
+    			.setKeepAliveStrategy(new PartnerKeepAliveStrategy())
+    			.evictExpiredConnections()
+    			.build();
+    }
+    
+    private HttpClientUtils() {}
+    
     public static void sendPostRequest(IProtocol protocol, Path file, Map<String,String> headers, String url) 
     		throws Exception {
-        CloseableHttpClient httpclient = null;
-        HttpPost httpPost = null;
+        HttpPost httpPost = new HttpPost(url);
+        boolean chunked = false;
+        
+        if(protocol != null && protocol.getSettings() instanceof As2ProtocolSettings) {
+        	As2ProtocolSettings settings = (As2ProtocolSettings) protocol.getSettings();
+        	configureRoute(httpPost.getURI(), settings);
+        	chunked = settings.isChunked();
+        }
         
         try {
-            httpclient = HttpClients.createDefault();
-            httpPost = new HttpPost(url);
-            
             if(headers != null) {
             	for (Map.Entry<String, String> entry : headers.entrySet()) {
             		httpPost.setHeader(entry.getKey(), entry.getValue());
             	}
             }
             
-            ByteArrayEntity entity = new ByteArrayEntity(Files.readAllBytes(file));
+            /* Streamed from the work file while the request is written */
+            FileEntity entity = new FileEntity(file.toFile());
+            entity.setChunked(chunked);
             httpPost.setEntity(entity);
             
             sLogger.debug("Sending POST request to " + url);
             
             if(protocol != null) {
             	As2MdnResponseHandler responseHandler = new As2MdnResponseHandler(protocol);
-                httpclient.execute(httpPost, responseHandler);
+                sHttpClient.execute(httpPost, responseHandler);
             } else {
-            	httpclient.execute(httpPost);
+            	/* The response has to be consumed for the connection to go back to the pool */
+            	try (CloseableHttpResponse response = sHttpClient.execute(httpPost)) {
+            		EntityUtils.consume(response.getEntity());
+            		
+            		int status = response.getStatusLine().getStatusCode();
+            		if(status >= 300) {
+            			throw new IOException("Request to [" + url + "] has been answered with status [" + status + "].");
+            		}
+            	}
             }
         } finally {
-        	if(httpPost != null) {
-        		httpPost.releaseConnection();
-        	}
-        	
-            if(httpclient != null) {
-                httpclient.close();
-            }
-            
-            
+        	httpPost.releaseConnection();
         }
     }
     
+    public static void shutdown() {
+    	try {
+			sHttpClient.close();
+		} catch (IOException e) {
+			sLogger.error("An error has occured while closing HTTP connections. " + e.getMessage(), e);
+		}
+    }
     
+    private static void configureRoute(URI uri, As2ProtocolSettings settings) {
+    	HttpHost target = toTarget(uri);
+    	int maxConnections = settings.getMaxConnectionsPerRoute();
+    	
+    	sKeepAlive.put(target, TimeUnit.SECONDS.toMillis(settings.getKeepAliveSeconds()));
+    	
+    	Integer current = sRouteLimits.put(target, maxConnections);
+    	if(current == null || current != maxConnections) {
+    		sConnectionManager.setMaxPerRoute(new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName())), maxConnections);
+    		
+    		int total = 0;
+    		for(Integer limit : sRouteLimits.values()) {
+    			total += limit;
+    		}
+    		sConnectionManager.setMaxTotal(Math.max(DEFAULT_MAX_TOTAL_CONNECTIONS, total));
+    		
+    		sLogger.debug("Up to [" + maxConnections + "] connections will be kept open to [" + target + "].");
+    	}
+    }
+    
+    /* Same host, port and scheme as the route the client plans for the URI */
+    public static HttpHost toTarget(URI uri) {
+    	String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+    	int port = uri.getPort();
+    	if(port <= 0) {
+    		port = "https".equals(scheme) ? 443 : 80;
+    	}
+    	
+    	return new HttpHost(uri.getHost(), port, scheme);
+    }
+    
+    /**
+     * Honours the timeout the partner sends in its Keep-Alive header, falling back
+     * to the keep-alive configured for the partner.
+     */
+    private static class PartnerKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			BasicHeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while(it.hasNext()) {
+				HeaderElement element = it.nextElement();
+				if("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+					try {
+						return Long.parseLong(element.getValue()) * 1000;
+					} catch(NumberFormatException e) {
+						// fall back to the configured keep-alive
+					}
+				}
+			}
+			
+			RouteInfo route = HttpClientContext.adapt(context).getHttpRoute();
+			Long keepAlive = route == null ? null : sKeepAlive.get(route.getTargetHost());
+			
+			return keepAlive != null ? keepAlive : TimeUnit.SECONDS.toMillis(DEFAULT_KEEP_ALIVE_SECONDS);
+		}
+    }
 }
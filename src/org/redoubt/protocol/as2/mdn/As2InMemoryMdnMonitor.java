@@ -1,70 +1,151 @@
 package org.redoubt.protocol.as2.mdn;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
+import org.redoubt.api.configuration.IServerConfigurationManager;
+import org.redoubt.api.factory.Factory;
+import org.redoubt.api.protocol.IMdnConfirmationListener;
 import org.redoubt.api.protocol.IMdnMonitor;
-import org.redoubt.api.protocol.IMessage;
-import org.redoubt.protocol.as2.As2Message;
+import org.redoubt.api.protocol.MonitoredMessage;
 import org.redoubt.util.Utils;
 
+/**
+ * Keeps the messages awaiting an MDN in memory. A message is forgotten once it has waited
+ * longer than the configured expiry or, when the configured maximum is reached, to make
+ * room for a newer one. Expired messages are dropped whenever the monitor is used, so they
+ * go even while nothing new is sent.
+ */
 public class As2InMemoryMdnMonitor implements IMdnMonitor {
 	private static final Logger sLogger = Logger.getLogger(As2InMemoryMdnMonitor.class);
-	private Map<String, As2Message> unconfirmedMessages;
-	
+
+	/* Messages are registered and confirmed from transport workers and HTTP threads concurrently */
+	private Map<String, Entry> unconfirmedMessages;
+	/* The same entries in the order they were registered, oldest first */
+	private ConcurrentSkipListMap<Long, Entry> registrationOrder;
+	private AtomicLong sequence;
+	private long expiryMillis;
+	private int maxMessages;
+	private final List<IMdnConfirmationListener> listeners = new CopyOnWriteArrayList<IMdnConfirmationListener>();
+
 	public As2InMemoryMdnMonitor() {
-		unconfirmedMessages = new HashMap<String, As2Message>();
+		IServerConfigurationManager configuration = Factory.getInstance().getServerConfigurationManager();
+		expiryMillis = TimeUnit.MINUTES.toMillis(configuration.getMdnMonitorExpiryMinutes());
+		maxMessages = configuration.getMdnMonitorMaxMessages();
+
+		unconfirmedMessages = new ConcurrentHashMap<String, Entry>();
+		registrationOrder = new ConcurrentSkipListMap<Long, Entry>();
+		sequence = new AtomicLong();
 	}
 
 	@Override
-	public void registerMessage(String uniqueId, IMessage message) {
-		As2Message as2Message = (As2Message) message;
-		
-		String mic = as2Message.getMic();
-		String fromEmail = as2Message.getFromEmail();
-		String messageId = as2Message.getMessageId();
-		String messageDate = as2Message.getMessageDate();
-
-		if(Utils.isNullOrEmptyTrimmed(mic)) {
-			sLogger.error("Can't register message for confirmation as it doesn't have a MIC assigned.");
-		}
-		
-		if(Utils.isNullOrEmptyTrimmed(fromEmail)) {
-			sLogger.error("Can't register message for confirmation as it doesn't have a from address assigned.");
-		}
-		
-		if(Utils.isNullOrEmptyTrimmed(messageId)) {
+	public void registerMessage(MonitoredMessage message) {
+		if(Utils.isNullOrEmptyTrimmed(message.getMessageId())) {
 			sLogger.error("Can't register message for confirmation as it doesn't have a message id assigned.");
+			return;
 		}
-		
-		if(Utils.isNullOrEmptyTrimmed(messageDate)) {
+
+		if(Utils.isNullOrEmptyTrimmed(message.getMic())) {
+			sLogger.error("Can't register message for confirmation as it doesn't have a MIC assigned.");
+			return;
+		}
+
+		if(Utils.isNullOrEmptyTrimmed(message.getMessageDate())) {
 			sLogger.error("Can't register message for confirmation as it doesn't have a message date assigned.");
 		}
-		
-		sLogger.info("Message with MIC [" + uniqueId + "] has been registered and is awaiting confirmation from a receipt.");
-		unconfirmedMessages.put(uniqueId, as2Message);
+
+		Entry entry = new Entry(sequence.incrementAndGet(), message);
+		Entry replaced = unconfirmedMessages.put(message.getMessageId(), entry);
+		if(replaced != null) {
+			registrationOrder.remove(replaced.sequence);
+		}
+		registrationOrder.put(entry.sequence, entry);
+
+		sLogger.info("Message with MessageId [" + message.getMessageId() + "] and MIC [" + message.getMic() +
+				"] has been registered and is awaiting confirmation from a receipt.");
+
+		evict(message.getRegistered());
 	}
 
 	@Override
-	public boolean isMessageRegistered(String uniqueId) {
-		return unconfirmedMessages.containsKey(uniqueId);
+	public boolean isMessageRegistered(String messageId) {
+		evict(System.currentTimeMillis());
+		return unconfirmedMessages.containsKey(messageId);
 	}
 
 	@Override
-	public void confirmAndDeregisterMessage(String uniqueId) {
-		As2Message message = unconfirmedMessages.get(uniqueId);
-		if(message == null) {
-			sLogger.error("Attempting to confirm message with MIC [" + uniqueId + "], however such message doesn't exist.");
+	public void confirmAndDeregisterMessage(String messageId) {
+		evict(System.currentTimeMillis());
+		Entry entry = unconfirmedMessages.remove(messageId);
+		if(entry == null) {
+			sLogger.error("Attempting to confirm message with MessageId [" + messageId + "], however such message doesn't exist.");
 			return;
 		}
-		
-		sLogger.info("Message with MIC [" + uniqueId + "] and MessageId [" + message.getMessageId() + "] has been confirmed with a receipt.");
-		unconfirmedMessages.remove(uniqueId);
+
+		registrationOrder.remove(entry.sequence);
+		sLogger.info("Message with MessageId [" + messageId + "] and MIC [" + entry.message.getMic() + "] has been confirmed with a receipt.");
+		for(IMdnConfirmationListener listener : listeners) {
+			listener.messageConfirmed(messageId);
+		}
+	}
+
+	@Override
+	public void deregisterMessage(String messageId) {
+		Entry entry = unconfirmedMessages.remove(messageId);
+		if(entry != null) {
+			registrationOrder.remove(entry.sequence);
+			sLogger.info("Message with MessageId [" + messageId + "] is no longer monitored.");
+		}
+	}
+
+	@Override
+	public void addConfirmationListener(IMdnConfirmationListener listener) {
+		listeners.add(listener);
 	}
 
 	@Override
-	public IMessage getMessage(String uniqueId) {
-		return unconfirmedMessages.get(uniqueId);
+	public MonitoredMessage getMessage(String messageId) {
+		evict(System.currentTimeMillis());
+		Entry entry = unconfirmedMessages.get(messageId);
+		return entry == null ? null : entry.message;
+	}
+
+	/* Drops the oldest messages while they are expired or there are too many */
+	private void evict(long now) {
+		Map.Entry<Long, Entry> oldest;
+		while((oldest = registrationOrder.firstEntry()) != null) {
+			Entry entry = oldest.getValue();
+			boolean expired = now - entry.message.getRegistered() > expiryMillis;
+			boolean overLimit = unconfirmedMessages.size() > maxMessages;
+			if(!expired && !overLimit) {
+				return;
+			}
+
+			if(registrationOrder.remove(oldest.getKey(), entry) && unconfirmedMessages.remove(entry.message.getMessageId(), entry)) {
+				if(expired) {
+					sLogger.warn("Message with MessageId [" + entry.message.getMessageId() + "] to [" + entry.message.getPartner() +
+							"] hasn't been confirmed with a receipt in time and is no longer monitored.");
+				} else {
+					sLogger.warn("Too many messages are awaiting a receipt. Message with MessageId [" + entry.message.getMessageId() +
+							"] to [" + entry.message.getPartner() + "] is no longer monitored.");
+				}
+			}
+		}
+	}
+
+	private static class Entry {
+		private final long sequence;
+		private final MonitoredMessage message;
+
+		Entry(long sequence, MonitoredMessage message) {
+			this.sequence = sequence;
+			this.message = message;
+		}
 	}
 }
@@ -15,10 +15,13 @@ import org.redoubt.api.configuration.ICryptoHelper;
 import org.redoubt.api.factory.Factory;
 import org.redoubt.api.protocol.IMdnMonitor;
 import org.redoubt.api.protocol.IProtocolSettings;
+import org.redoubt.api.protocol.MonitoredMessage;
 import org.redoubt.application.VersionInformation;
 import org.redoubt.protocol.ProtocolException;
 import org.redoubt.protocol.as2.As2HeaderDictionary;
 import org.redoubt.protocol.as2.As2Message;
+import org.redoubt.protocol.as2.As2ProtocolSettings;
+import org.redoubt.util.FileMimeBodyPart;
 import org.redoubt.util.Utils;
 
 public class As2MdnMessage extends As2Message {
@@ -57,9 +60,16 @@ public class As2MdnMessage extends As2Message {
 		super(content, internetHeaders);
 	}
 
+
+	public As2MdnMessage(FileMimeBodyPart content, InternetHeaders internetHeaders) throws MessagingException {
+		super(content, internetHeaders);
+	}
+
 	@Override
 	public void packageMessage(IProtocolSettings settings) throws Exception {
 		sLogger.debug("Packaging As2 MDN message...");
+		streaming = ((As2ProtocolSettings) settings).isStreamingEnabled();
+		
         MimeMultipart multipart = new MimeMultipart();
         multipart.setSubType(As2HeaderDictionary.MIME_SUBTYPE_REPORT);
         
@@ -83,7 +93,6 @@ public class As2MdnMessage extends As2Message {
         headers.put(As2HeaderDictionary.AS2_FROM, fromAddress);
         headers.put(As2HeaderDictionary.AS2_TO, toAddress);
         headers.put(As2HeaderDictionary.AS2_VERSION, As2HeaderDictionary.AS2_VERSION_1_1);
-        headers.put(As2HeaderDictionary.CONNECTION, "close");
         headers.put(As2HeaderDictionary.USER_AGENT, As2HeaderDictionary.USER_AGENT_REDOUBT);
         headers.put(As2HeaderDictionary.ACCEPT_ENCODING, "gzip,deflate");
         headers.put(As2HeaderDictionary.MIME_VERSION, As2HeaderDictionary.MIME_VERSION_1_0);
@@ -107,6 +116,7 @@ public class As2MdnMessage extends As2Message {
 	@Override
 	public void unpackageMessage(IProtocolSettings settings) throws Exception {
 		sLogger.debug("Unpackaging As2 MDN message...");
+		streaming = ((As2ProtocolSettings) settings).isStreamingEnabled();
 		
 		fromAddress= headers.get(As2HeaderDictionary.AS2_FROM);
 		if(Utils.isNullOrEmptyTrimmed(fromAddress)) {
@@ -143,12 +153,11 @@ public class As2MdnMessage extends As2Message {
 		readDispositionPart();
 		
 		IMdnMonitor monitor = Factory.getInstance().getMdnMonitor();
-		if(monitor.isMessageRegistered(mic)) {
-			As2Message originalMessage = (As2Message) monitor.getMessage(mic);
-			
-			if(originalMessage.getMessageId().equals(originalMessageId)) {
+		MonitoredMessage originalMessage = originalMessageId == null ? null : monitor.getMessage(originalMessageId);
+		if(originalMessage != null) {
+			if(mic != null && mic.equals(originalMessage.getMic())) {
 				sLogger.info("Message with Message-Id: " + originalMessageId + " and MIC: " + mic + " has been confirmed with a MDN.");
-				monitor.confirmAndDeregisterMessage(mic);
+				monitor.confirmAndDeregisterMessage(originalMessageId);
 			} else {
 				sLogger.error("Received an MDN, which is not expected. MIC: " + mic + ". From: " + 
 						fromAddress + ". To: " + toAddress + ". Original-Message-Id: " + originalMessageId);
@@ -0,0 +1,483 @@
+package org.redoubt.protocol.as2.mdn;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.redoubt.api.configuration.IServerConfigurationManager;
+import org.redoubt.api.factory.Factory;
+import org.redoubt.api.protocol.IMdnConfirmationListener;
+import org.redoubt.api.protocol.IMdnMonitor;
+import org.redoubt.api.protocol.MonitoredMessage;
+import org.redoubt.util.Utils;
+
+/**
+ * Keeps the messages awaiting an MDN on disk, so MDNs that arrive after a restart are still
+ * reconciled. Registrations and confirmations are appended to a log and forced to disk
+ * before the call returns. Threads writing at the same time share one fsync. An open
+ * addressing hash table in a direct buffer points from each Message-ID to its registration
+ * in the log, so a lookup takes a probe or two and a single read however many messages
+ * are outstanding, and only 16 bytes per message are held in memory, off the heap.
+ * <p>
+ * The table isn't persisted, it is rebuilt from the log on start. Messages that have waited longer than the
+ * configured expiry are dropped then, and the log is rewritten once most of it is made
+ * up of confirmed or expired messages.
+ */
+public class As2PersistentMdnMonitor implements IMdnMonitor {
+	private static final Logger sLogger = Logger.getLogger(As2PersistentMdnMonitor.class);
+
+	private static final String LOG_FILE_NAME = "monitor.log";
+	private static final byte RECORD_REGISTER = 1;
+	private static final byte RECORD_CONFIRM = 2;
+
+	/* Each slot holds the hash of a Message-ID and the offset of its registration in the log */
+	private static final int SLOT_SIZE = 16;
+	private static final long EMPTY = 0;
+	private static final long DELETED = 1;
+	private static final int MIN_CAPACITY = 1 << 16;
+	private static final double MAX_LOAD = 0.7;
+	/* The log isn't rewritten on start while it is smaller than this */
+	private static final long COMPACTION_MIN_SIZE = 16 * 1024 * 1024;
+
+	private Path folder;
+	private long expiryMillis;
+
+	private FileChannel log;
+	private volatile long logSize;
+	/* Guards the fsync of the log, outside the monitor's own lock */
+	private final Object syncLock = new Object();
+	private long syncedSize;
+
+	private ByteBuffer index;
+	private int capacity;
+	/* Live entries plus deleted slots, which still take part in probing */
+	private int usedSlots;
+	private int liveEntries;
+	private final List<IMdnConfirmationListener> listeners = new CopyOnWriteArrayList<IMdnConfirmationListener>();
+
+	public As2PersistentMdnMonitor() {
+		IServerConfigurationManager configuration = Factory.getInstance().getServerConfigurationManager();
+		folder = configuration.getMdnMonitorFolder();
+		expiryMillis = TimeUnit.MINUTES.toMillis(configuration.getMdnMonitorExpiryMinutes());
+
+		try {
+			open();
+		} catch (IOException e) {
+			sLogger.error("An error has occured while loading the MDN monitor from [" + folder + "]! " + e.getMessage(), e);
+			sLogger.error("APPLICATION WILL BE TERMMINATED.");
+			System.exit(1);
+		}
+	}
+
+	@Override
+	public void registerMessage(MonitoredMessage message) {
+		if(Utils.isNullOrEmptyTrimmed(message.getMessageId())) {
+			sLogger.error("Can't register message for confirmation as it doesn't have a message id assigned.");
+			return;
+		}
+
+		if(Utils.isNullOrEmptyTrimmed(message.getMic())) {
+			sLogger.error("Can't register message for confirmation as it doesn't have a MIC assigned.");
+			return;
+		}
+
+		try {
+			long written;
+			synchronized(this) {
+				long offset = append(toRegisterRecord(message));
+				put(message.getMessageId(), offset);
+				written = logSize;
+			}
+			sync(written);
+		} catch (IOException e) {
+			sLogger.error("An error has occured while registering message with MessageId [" + message.getMessageId() +
+					"] for confirmation. " + e.getMessage(), e);
+			return;
+		}
+
+		sLogger.info("Message with MessageId [" + message.getMessageId() + "] and MIC [" + message.getMic() +
+				"] has been registered and is awaiting confirmation from a receipt.");
+	}
+
+	@Override
+	public synchronized boolean isMessageRegistered(String messageId) {
+		return getMessage(messageId) != null;
+	}
+
+	@Override
+	public synchronized MonitoredMessage getMessage(String messageId) {
+		try {
+			int slot = find(messageId);
+			return slot < 0 ? null : readRecord(slotOffset(slot));
+		} catch (IOException e) {
+			sLogger.error("An error has occured while looking up message with MessageId [" + messageId + "]. " + e.getMessage(), e);
+			return null;
+		}
+	}
+
+	@Override
+	public void confirmAndDeregisterMessage(String messageId) {
+		if(!removeMessage(messageId, true)) {
+			return;
+		}
+
+		sLogger.info("Message with MessageId [" + messageId + "] has been confirmed with a receipt.");
+		for(IMdnConfirmationListener listener : listeners) {
+			listener.messageConfirmed(messageId);
+		}
+	}
+
+	@Override
+	public void deregisterMessage(String messageId) {
+		if(removeMessage(messageId, false)) {
+			sLogger.info("Message with MessageId [" + messageId + "] is no longer monitored.");
+		}
+	}
+
+	@Override
+	public void addConfirmationListener(IMdnConfirmationListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Both confirming and deregistering write a CONFIRM record, which takes the message
+	 * out of the log.
+	 * @return true if the message was registered and has been removed
+	 */
+	private boolean removeMessage(String messageId, boolean confirm) {
+		try {
+			long written;
+			synchronized(this) {
+				int slot = find(messageId);
+				if(slot < 0) {
+					if(confirm) {
+						sLogger.error("Attempting to confirm message with MessageId [" + messageId + "], however such message doesn't exist.");
+					}
+					return false;
+				}
+
+				append(toConfirmRecord(messageId));
+				index.putLong(slot * SLOT_SIZE, DELETED);
+				liveEntries--;
+				written = logSize;
+			}
+			sync(written);
+			return true;
+		} catch (IOException e) {
+			sLogger.error("An error has occured while removing message with MessageId [" + messageId + "]. " + e.getMessage(), e);
+			return false;
+		}
+	}
+
+	private void open() throws IOException {
+		Files.createDirectories(folder);
+		Path logFile = folder.resolve(LOG_FILE_NAME);
+
+		log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		int registrations = rebuildIndex();
+
+		if(logSize > COMPACTION_MIN_SIZE && registrations > 2 * liveEntries) {
+			compact(logFile);
+		}
+
+		sLogger.info("[" + liveEntries + "] messages are awaiting confirmation from a receipt.");
+	}
+
+	/**
+	 * Replays the log into a new table.
+	 * @return the number of registrations found in the log
+	 */
+	private int rebuildIndex() throws IOException {
+		createIndex(MIN_CAPACITY);
+
+		long now = System.currentTimeMillis();
+		int registrations = 0;
+		int expired = 0;
+		long offset = 0;
+		long size = log.size();
+
+		InputStream in = new BufferedInputStream(Files.newInputStream(folder.resolve(LOG_FILE_NAME)), 64 * 1024);
+		try (DataInputStream records = new DataInputStream(in)) {
+			while(offset < size) {
+				int length;
+				byte[] record;
+				try {
+					length = records.readInt();
+					if(length <= 0 || offset + 4 + length > size) {
+						break;
+					}
+					record = new byte[length];
+					records.readFully(record);
+				} catch (EOFException e) {
+					break;
+				}
+
+				DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+				byte type = fields.readByte();
+				if(type == RECORD_REGISTER) {
+					registrations++;
+					long registered = fields.readLong();
+					String messageId = fields.readUTF();
+					if(now - registered > expiryMillis) {
+						expired++;
+					} else {
+						put(messageId, offset);
+					}
+				} else if(type == RECORD_CONFIRM) {
+					remove(fields.readUTF());
+				}
+
+				offset += 4 + length;
+			}
+		}
+
+		if(offset < size) {
+			/* The tail of a record that was being written when the process stopped */
+			sLogger.warn("Discarding [" + (size - offset) + "] bytes of an incomplete record at the end of the MDN monitor log.");
+			log.truncate(offset);
+		}
+		logSize = offset;
+		syncedSize = offset;
+
+		if(expired > 0) {
+			sLogger.warn("[" + expired + "] messages haven't been confirmed with a receipt in time and are no longer monitored.");
+		}
+
+		return registrations;
+	}
+
+	/* Rewrites the log with only the messages that are still awaiting confirmation */
+	private void compact(Path logFile) throws IOException {
+		Path compactedFile = folder.resolve(LOG_FILE_NAME + ".tmp");
+		try (FileChannel compacted = FileChannel.open(compactedFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for(int slot = 0; slot < capacity; slot++) {
+				long hash = index.getLong(slot * SLOT_SIZE);
+				if(hash != EMPTY && hash != DELETED) {
+					writeFully(compacted, ByteBuffer.wrap(toRegisterRecord(readRecord(slotOffset(slot)))));
+				}
+			}
+			compacted.force(true);
+		}
+
+		log.close();
+		Files.move(compactedFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		rebuildIndex();
+
+		sLogger.info("MDN monitor log has been compacted to [" + logSize + "] bytes.");
+	}
+
+	private long append(byte[] record) throws IOException {
+		long offset = logSize;
+		ByteBuffer buffer = ByteBuffer.allocate(4 + record.length);
+		buffer.putInt(record.length).put(record).flip();
+		while(buffer.hasRemaining()) {
+			logSize += log.write(buffer, logSize);
+		}
+		return offset;
+	}
+
+	/**
+	 * Forces the log up to the given size to disk. Threads that arrive while a force is
+	 * running wait for it and find their records already covered by the next one, so a
+	 * burst of registrations shares a single fsync.
+	 */
+	private void sync(long size) throws IOException {
+		synchronized(syncLock) {
+			if(syncedSize >= size) {
+				return;
+			}
+			long written = logSize;
+			log.force(false);
+			syncedSize = written;
+		}
+	}
+
+	private MonitoredMessage readRecord(long offset) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(length, offset);
+		ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+		readFully(record, offset + 4);
+
+		DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record.array()));
+		fields.readByte();
+		long registered = fields.readLong();
+		String messageId = fields.readUTF();
+		String mic = fields.readUTF();
+		String messageDate = fields.readUTF();
+		String partner = fields.readUTF();
+		return new MonitoredMessage(messageId, mic, messageDate, partner, registered);
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(log.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of the MDN monitor log at [" + position + "].");
+			}
+		}
+	}
+
+	private static byte[] toRegisterRecord(MonitoredMessage message) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream fields = new DataOutputStream(record);
+		fields.writeByte(RECORD_REGISTER);
+		fields.writeLong(message.getRegistered());
+		fields.writeUTF(message.getMessageId());
+		fields.writeUTF(nullToEmpty(message.getMic()));
+		fields.writeUTF(nullToEmpty(message.getMessageDate()));
+		fields.writeUTF(nullToEmpty(message.getPartner()));
+		fields.flush();
+		return record.toByteArray();
+	}
+
+	private static byte[] toConfirmRecord(String messageId) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream fields = new DataOutputStream(record);
+		fields.writeByte(RECORD_CONFIRM);
+		fields.writeUTF(messageId);
+		fields.flush();
+		return record.toByteArray();
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	/* Index */
+
+	/**
+	 * @return the slot of the Message-ID or -1, if it isn't registered
+	 */
+	private int find(String messageId) throws IOException {
+		long hash = hash(messageId);
+		int mask = capacity - 1;
+		for(int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+			long slotHash = index.getLong(slot * SLOT_SIZE);
+			if(slotHash == EMPTY) {
+				return -1;
+			}
+			/* Different Message-IDs may share a hash - the log has the final say */
+			if(slotHash == hash && messageId.equals(readMessageId(slotOffset(slot)))) {
+				return slot;
+			}
+		}
+	}
+
+	private void put(String messageId, long offset) throws IOException {
+		int slot = find(messageId);
+		if(slot >= 0) {
+			index.putLong(slot * SLOT_SIZE + 8, offset);
+			return;
+		}
+
+		if(usedSlots + 1 > capacity * MAX_LOAD) {
+			resizeIndex();
+		}
+
+		long hash = hash(messageId);
+		int mask = capacity - 1;
+		for(slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+			long slotHash = index.getLong(slot * SLOT_SIZE);
+			if(slotHash == EMPTY || slotHash == DELETED) {
+				if(slotHash == EMPTY) {
+					usedSlots++;
+				}
+				index.putLong(slot * SLOT_SIZE, hash);
+				index.putLong(slot * SLOT_SIZE + 8, offset);
+				liveEntries++;
+				return;
+			}
+		}
+	}
+
+	private void remove(String messageId) throws IOException {
+		int slot = find(messageId);
+		if(slot >= 0) {
+			index.putLong(slot * SLOT_SIZE, DELETED);
+			liveEntries--;
+		}
+	}
+
+	private long slotOffset(int slot) {
+		return index.getLong(slot * SLOT_SIZE + 8);
+	}
+
+	/* Reads just as much of the registration as it takes to get to the Message-ID */
+	private String readMessageId(long offset) throws IOException {
+		long messageIdOffset = offset + 4 + 1 + 8;
+		ByteBuffer length = ByteBuffer.allocate(2);
+		readFully(length, messageIdOffset);
+		ByteBuffer messageId = ByteBuffer.allocate(2 + (length.getShort(0) & 0xffff));
+		readFully(messageId, messageIdOffset);
+
+		return new DataInputStream(new ByteArrayInputStream(messageId.array())).readUTF();
+	}
+
+	/* Doubles the table while it is more than half full, otherwise just drops the deleted slots */
+	private void resizeIndex() throws IOException {
+		ByteBuffer current = index;
+		int currentCapacity = capacity;
+		int newCapacity = liveEntries * 2 > currentCapacity * MAX_LOAD ? currentCapacity * 2 : currentCapacity;
+
+		createIndex(newCapacity);
+		int mask = newCapacity - 1;
+		for(int i = 0; i < currentCapacity; i++) {
+			long hash = current.getLong(i * SLOT_SIZE);
+			if(hash == EMPTY || hash == DELETED) {
+				continue;
+			}
+
+			int slot = (int) hash & mask;
+			while(index.getLong(slot * SLOT_SIZE) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			index.putLong(slot * SLOT_SIZE, hash);
+			index.putLong(slot * SLOT_SIZE + 8, current.getLong(i * SLOT_SIZE + 8));
+			usedSlots++;
+		}
+		liveEntries = usedSlots;
+
+		sLogger.debug("MDN monitor index now has [" + newCapacity + "] slots for [" + liveEntries + "] messages.");
+	}
+
+	private void createIndex(int newCapacity) {
+		/* A new direct buffer is zeroed, so every slot starts out empty */
+		index = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+		capacity = newCapacity;
+		usedSlots = 0;
+		liveEntries = 0;
+	}
+
+	/* 64 bit FNV-1a, kept clear of the values that mark empty and deleted slots */
+	private static long hash(String messageId) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < messageId.length(); i++) {
+			hash ^= messageId.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 32;
+		return hash == EMPTY || hash == DELETED ? hash + 2 : hash;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
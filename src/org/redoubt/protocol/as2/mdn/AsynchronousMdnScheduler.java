@@ -0,0 +1,250 @@
+package org.redoubt.protocol.as2.mdn;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.log4j.Logger;
+import org.redoubt.api.configuration.IServerConfigurationManager;
+import org.redoubt.api.factory.Factory;
+import org.redoubt.application.configuration.ConfigurationConstants;
+
+/**
+ * Delivers asynchronous MDNs on a small pool of threads shared by all transports. A failed
+ * delivery is retried with an exponential backoff and only a limited number of MDNs are
+ * sent to the same destination at once. The others wait in line for their destination and
+ * the next one is started as soon as a delivery to it finishes. MDNs are kept in an
+ * {@link MdnOutbox} until they are delivered, and the ones left over from the previous
+ * run are sent on start.
+ */
+public class AsynchronousMdnScheduler {
+	private static final Logger sLogger = Logger.getLogger(AsynchronousMdnScheduler.class);
+
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private static final Object LOCK = new Object();
+	private static final Map<HttpHost, Destination> sDestinations = new ConcurrentHashMap<HttpHost, Destination>();
+	private static ScheduledThreadPoolExecutor sExecutor;
+	private static MdnOutbox sOutbox;
+
+	private AsynchronousMdnScheduler() {}
+
+	/**
+	 * Opens the outbox and resumes the delivery of the MDNs found in it.
+	 */
+	public static void start() throws IOException {
+		getOutbox();
+	}
+
+	/**
+	 * Moves the MDN file into the outbox and schedules its delivery.
+	 */
+	public static void schedule(Path mdnFile, Map<String, String> mdnHeaders, String url) throws IOException {
+		AsynchronousMdnSender sender = getOutbox().add(mdnFile, mdnHeaders, url);
+		schedule(sender, ConfigurationConstants.MDN_ASYNCHRONOUS_DELAY);
+	}
+
+	static void delivered(AsynchronousMdnSender sender) {
+		MdnOutbox outbox = getOpenOutbox();
+		if(outbox != null) {
+			outbox.remove(sender);
+		}
+	}
+
+	static void failed(AsynchronousMdnSender sender) {
+		MdnOutbox outbox = getOpenOutbox();
+		if(outbox != null) {
+			outbox.fail(sender);
+		}
+	}
+
+	/**
+	 * @return true if the MDN may be sent now, false if it has been put in line for its
+	 * destination and will be started once a delivery to it finishes
+	 */
+	static boolean acquireDestination(HttpHost destination, AsynchronousMdnSender sender) {
+		return getDestination(destination).tryAcquire(sender);
+	}
+
+	/**
+	 * Ends a delivery to the destination and starts the next MDN waiting for it.
+	 */
+	static void releaseDestination(HttpHost destination) {
+		AsynchronousMdnSender next = getDestination(destination).release();
+		if(next != null) {
+			next.grantDestination();
+			schedule(next, 0);
+		}
+	}
+
+	/**
+	 * @return false if the delivery has been attempted as many times as allowed
+	 */
+	static boolean scheduleRetry(AsynchronousMdnSender sender, int attempts) {
+		IServerConfigurationManager configuration = Factory.getInstance().getServerConfigurationManager();
+		if(attempts >= configuration.getAsyncMdnMaxAttempts()) {
+			return false;
+		}
+
+		long delay = TimeUnit.SECONDS.toMillis(configuration.getAsyncMdnRetryDelaySeconds()) << Math.min(attempts - 1, 20);
+		delay = Math.min(delay, ConfigurationConstants.MDN_ASYNCHRONOUS_MAX_RETRY_DELAY);
+
+		sLogger.debug("Asynchronous MDN [" + sender.getMdnFile() + "] will be sent again in [" + delay + "] ms.");
+		MdnOutbox outbox = getOpenOutbox();
+		if(outbox != null) {
+			outbox.recordAttempts(sender);
+		}
+		schedule(sender, delay);
+		return true;
+	}
+
+	private static Destination getDestination(HttpHost destination) {
+		Destination current = sDestinations.get(destination);
+		if(current == null) {
+			int maxPerDestination = Factory.getInstance().getServerConfigurationManager().getAsyncMdnMaxPerDestination();
+			Destination created = new Destination(maxPerDestination);
+			current = sDestinations.putIfAbsent(destination, created);
+			if(current == null) {
+				current = created;
+			}
+		}
+
+		return current;
+	}
+
+	public static void shutdown() {
+		ScheduledThreadPoolExecutor executor;
+		synchronized(LOCK) {
+			executor = sExecutor;
+			sExecutor = null;
+		}
+		if(executor != null) {
+			stopExecutor(executor);
+		}
+
+		/* Only once no more deliveries are running */
+		MdnOutbox outbox;
+		synchronized(LOCK) {
+			outbox = sOutbox;
+			sOutbox = null;
+		}
+		if(outbox != null) {
+			outbox.close();
+		}
+	}
+
+	private static void stopExecutor(ScheduledThreadPoolExecutor executor) {
+		int pending = executor.getQueue().size();
+		if(pending > 0) {
+			sLogger.info("[" + pending + "] asynchronous MDNs have not been sent yet, they remain in the outbox.");
+		}
+
+		executor.shutdown();
+		try {
+			if(!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				sLogger.warn("Asynchronous MDNs are still being sent after [" + SHUTDOWN_TIMEOUT_SECONDS + "] seconds.");
+			}
+		} catch (InterruptedException e) {
+			sLogger.debug("Interrupted while waiting for asynchronous MDNs to be sent. " + e.getMessage(), e);
+		}
+	}
+
+	private static void schedule(AsynchronousMdnSender sender, long delay) {
+		try {
+			getExecutor().schedule(sender, delay, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException e) {
+			sLogger.warn("Asynchronous MDN [" + sender.getMdnFile() + "] can't be sent - the server is shutting down.");
+		}
+	}
+
+	private static MdnOutbox getOutbox() throws IOException {
+		MdnOutbox outbox;
+		List<AsynchronousMdnSender> replayed;
+		synchronized(LOCK) {
+			if(sOutbox != null) {
+				return sOutbox;
+			}
+
+			Path folder = Factory.getInstance().getServerConfigurationManager().getMdnOutboxFolder();
+			outbox = new MdnOutbox(folder);
+			replayed = outbox.open();
+			sOutbox = outbox;
+			sLogger.debug("Asynchronous MDNs are kept in the outbox [" + folder + "] until they are delivered.");
+		}
+
+		for(AsynchronousMdnSender sender : replayed) {
+			schedule(sender, ConfigurationConstants.MDN_ASYNCHRONOUS_DELAY);
+		}
+		return outbox;
+	}
+
+	private static MdnOutbox getOpenOutbox() {
+		synchronized(LOCK) {
+			return sOutbox;
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor getExecutor() {
+		synchronized(LOCK) {
+			if(sExecutor == null) {
+				int threads = Factory.getInstance().getServerConfigurationManager().getAsyncMdnThreads();
+				sExecutor = new ScheduledThreadPoolExecutor(threads, new SenderThreadFactory());
+				/* Retries due in minutes would otherwise hold up the shutdown */
+				sExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+				sLogger.debug("Asynchronous MDNs are sent by [" + threads + "] threads.");
+			}
+
+			return sExecutor;
+		}
+	}
+
+	/**
+	 * The deliveries running to a destination and the MDNs waiting for it, in the order
+	 * they arrived. A finishing delivery hands its place straight to the next MDN.
+	 */
+	private static class Destination {
+		private final int maxSenders;
+		private final Queue<AsynchronousMdnSender> waiting = new ArrayDeque<AsynchronousMdnSender>();
+		private int sending;
+
+		Destination(int maxSenders) {
+			this.maxSenders = maxSenders;
+		}
+
+		synchronized boolean tryAcquire(AsynchronousMdnSender sender) {
+			if(sending < maxSenders) {
+				sending++;
+				return true;
+			}
+			waiting.add(sender);
+			return false;
+		}
+
+		synchronized AsynchronousMdnSender release() {
+			AsynchronousMdnSender next = waiting.poll();
+			if(next == null) {
+				sending--;
+			}
+			return next;
+		}
+	}
+
+	private static class SenderThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "AsynchronousMdnSender-" + count.incrementAndGet());
+		}
+	}
+}
@@ -1,40 +1,94 @@
 package org.redoubt.protocol.as2.mdn;
 
+import java.net.URI;
 import java.nio.file.Path;
 import java.util.Map;
-import java.util.TimerTask;
 
+import org.apache.http.HttpHost;
 import org.apache.log4j.Logger;
 import org.redoubt.protocol.as2.HttpClientUtils;
-import org.redoubt.util.FileSystemUtils;
 
-public class AsynchronousMdnSender extends TimerTask {
+/**
+ * A single asynchronous MDN, run by the {@link AsynchronousMdnScheduler} once per
+ * delivery attempt.
+ */
+public class AsynchronousMdnSender implements Runnable {
 	private static final Logger sLogger = Logger.getLogger(AsynchronousMdnSender.class);
-	
+
+	private String id;
 	private Path mdnFile;
 	private Map<String, String> mdnHeaders;
 	private String url;
-	
-	public AsynchronousMdnSender(Path mdnFile, Map<String, String> mdnHeaders, String url) {
+	private int attempts;
+	/* Set when a finishing delivery has passed its place at the destination on to this MDN */
+	private volatile boolean destinationGranted;
+
+	public AsynchronousMdnSender(String id, Path mdnFile, Map<String, String> mdnHeaders, String url) {
+		this.id = id;
 		this.mdnFile = mdnFile;
 		this.mdnHeaders = mdnHeaders;
 		this.url = url;
 	}
 
+	public String getId() {
+		return id;
+	}
+
+	public Path getMdnFile() {
+		return mdnFile;
+	}
+
+	public Map<String, String> getMdnHeaders() {
+		return mdnHeaders;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	void grantDestination() {
+		destinationGranted = true;
+	}
+
 	@Override
 	public void run() {
-		new Thread() {
-			@Override
-			public void run() {
-				try {
-					HttpClientUtils.sendPostRequest(null, mdnFile, mdnHeaders, url);
-					FileSystemUtils.removeWorkFile(mdnFile);
-				} catch (Exception e) {
-					sLogger.error("An error has occured while sending asynchronous MDN. " + e.getMessage(), e);
-				}
+		HttpHost destination;
+		try {
+			destination = HttpClientUtils.toTarget(URI.create(url));
+		} catch(IllegalArgumentException e) {
+			sLogger.error("Asynchronous MDN can't be sent to [" + url + "]. " + e.getMessage(), e);
+			AsynchronousMdnScheduler.failed(this);
+			return;
+		}
+
+		if(destinationGranted) {
+			destinationGranted = false;
+		} else if(!AsynchronousMdnScheduler.acquireDestination(destination, this)) {
+			/* Started again once the destination is free */
+			return;
+		}
+
+		try {
+			attempts++;
+			HttpClientUtils.sendPostRequest(null, mdnFile, mdnHeaders, url);
+			AsynchronousMdnScheduler.delivered(this);
+		} catch (Exception e) {
+			if(AsynchronousMdnScheduler.scheduleRetry(this, attempts)) {
+				sLogger.warn("Attempt [" + attempts + "] to send asynchronous MDN to [" + url + "] has failed. " + e.getMessage());
+			} else {
+				sLogger.error("An error has occured while sending asynchronous MDN. Giving up after [" + attempts + "] attempts. " + e.getMessage(), e);
+				AsynchronousMdnScheduler.failed(this);
 			}
-		}.start();
+		} finally {
+			AsynchronousMdnScheduler.releaseDestination(destination);
+		}
 	}
-	
-	
 }
@@ -0,0 +1,100 @@
+package org.redoubt.protocol.as2.mdn;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.ParseException;
+
+import org.apache.log4j.Logger;
+import org.redoubt.protocol.as2.As2HeaderDictionary;
+
+/**
+ * Tells an MDN apart from a regular As2 message without parsing the whole message.
+ * Only the Content-Type header and, for signed messages, the headers of the first
+ * MIME part are inspected.
+ */
+public class MdnClassifier {
+	private static final Logger sLogger = Logger.getLogger(MdnClassifier.class);
+
+	/* The headers of the first part of a signed MDN are expected to be well within this limit */
+	private static final int PEEK_SIZE = 8 * 1024;
+	private static final String DISPOSITION_NOTIFICATION = "disposition-notification";
+	private static final String MULTIPART_SIGNED = "multipart/signed";
+
+	private MdnClassifier() {}
+
+	public static boolean isMdn(InternetHeaders headers, Path content) throws IOException {
+		String contentTypeValue = headers.getHeader(As2HeaderDictionary.CONTENT_TYPE, null);
+		if(contentTypeValue == null) {
+			return false;
+		}
+
+		ContentType contentType;
+		try {
+			contentType = new ContentType(contentTypeValue);
+		} catch (ParseException e) {
+			sLogger.debug("Unable to parse content type [" + contentTypeValue + "]. " + e.getMessage());
+			return false;
+		}
+
+		if(!contentType.match(MULTIPART_SIGNED)) {
+			/* Unsigned MDNs are sent as multipart/report; report-type=disposition-notification */
+			return contentTypeValue.contains(DISPOSITION_NOTIFICATION);
+		}
+
+		String boundary = contentType.getParameter("boundary");
+		if(boundary == null) {
+			return false;
+		}
+
+		String firstPartContentType = readFirstPartContentType(content, boundary);
+		return firstPartContentType != null && firstPartContentType.contains(DISPOSITION_NOTIFICATION);
+	}
+
+	private static String readFirstPartContentType(Path content, String boundary) throws IOException {
+		byte[] buffer = new byte[PEEK_SIZE];
+		int length = 0;
+
+		try (InputStream in = Files.newInputStream(content)) {
+			int read;
+			while(length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += read;
+			}
+		}
+
+		String head = new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+		int boundaryIndex = head.indexOf("--" + boundary);
+		if(boundaryIndex < 0) {
+			return null;
+		}
+
+		int headersStart = head.indexOf('\n', boundaryIndex);
+		if(headersStart < 0) {
+			return null;
+		}
+		headersStart++;
+
+		int headersEnd = head.indexOf("\r\n\r\n", headersStart);
+		if(headersEnd < 0) {
+			headersEnd = head.indexOf("\n\n", headersStart);
+		}
+		if(headersEnd < 0) {
+			return null;
+		}
+
+		try {
+			InternetHeaders partHeaders = new InternetHeaders(new ByteArrayInputStream(buffer, headersStart, headersEnd - headersStart));
+			return partHeaders.getHeader(As2HeaderDictionary.CONTENT_TYPE, null);
+		} catch (MessagingException e) {
+			sLogger.debug("Unable to parse the headers of the first MIME part. " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package org.redoubt.protocol.as2.mdn;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps asynchronous MDNs on disk until they are delivered, so they survive a restart.
+ * Every MDN is a payload file in the outbox folder, and an append-only journal records
+ * the MDNs added to and removed from the outbox, and how often each has been attempted.
+ * A single writer thread forces the journal to disk, so MDNs added at the same time share
+ * one fsync.
+ */
+public class MdnOutbox {
+	private static final Logger sLogger = Logger.getLogger(MdnOutbox.class);
+
+	private static final String JOURNAL_FILE_NAME = "journal.log";
+	private static final String PAYLOAD_EXTENSION = ".mdn";
+	private static final String FAILED_EXTENSION = ".failed";
+	private static final String RECORD_ADD = "ADD";
+	private static final String RECORD_DONE = "DONE";
+	private static final String RECORD_ATTEMPTS = "ATTEMPTS";
+	/* The journal is truncated once it is larger than this and the outbox is empty */
+	private static final long COMPACTION_SIZE = 1024 * 1024;
+
+	private final Path folder;
+	private final Map<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+	private final LinkedBlockingQueue<JournalRecord> records = new LinkedBlockingQueue<JournalRecord>();
+	/* Queued by close - the records ahead of it are still written */
+	private final JournalRecord closeRecord = new JournalRecord(null, null);
+	private final Object lock = new Object();
+	private FileChannel journal;
+	private Thread writer;
+	private volatile boolean isOpen;
+
+	public MdnOutbox(Path folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * Replays the journal and starts accepting MDNs.
+	 * @return the MDNs that were waiting for delivery when the outbox was last closed
+	 */
+	public List<AsynchronousMdnSender> open() throws IOException {
+		Files.createDirectories(folder);
+		Path journalFile = folder.resolve(JOURNAL_FILE_NAME);
+
+		Map<String, AsynchronousMdnSender> replayed = replay(journalFile);
+
+		/* Start over with a journal that holds only the MDNs that are still pending */
+		Path compactedFile = folder.resolve(JOURNAL_FILE_NAME + ".tmp");
+		try (FileChannel compacted = FileChannel.open(compactedFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for(AsynchronousMdnSender sender : replayed.values()) {
+				writeFully(compacted, ByteBuffer.wrap(toAddRecord(sender)));
+				if(sender.getAttempts() > 0) {
+					writeFully(compacted, ByteBuffer.wrap(toAttemptsRecord(sender)));
+				}
+			}
+			compacted.force(true);
+		}
+		Files.move(compactedFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		forceFolder();
+
+		journal = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		for(String id : replayed.keySet()) {
+			pending.put(id, Boolean.TRUE);
+		}
+
+		isOpen = true;
+		writer = new Thread(new JournalWriter(), "MdnOutboxJournalWriter");
+		writer.setDaemon(true);
+		writer.start();
+
+		if(!replayed.isEmpty()) {
+			sLogger.info("[" + replayed.size() + "] asynchronous MDNs from the outbox [" + folder + "] will be sent again.");
+		}
+
+		return new ArrayList<AsynchronousMdnSender>(replayed.values());
+	}
+
+	/**
+	 * Moves the MDN into the outbox and returns once it has been recorded on disk.
+	 */
+	public AsynchronousMdnSender add(Path mdnFile, Map<String, String> mdnHeaders, String url) throws IOException {
+		String id = mdnFile.getFileName().toString();
+		Path payload = folder.resolve(id + PAYLOAD_EXTENSION);
+		Files.move(mdnFile, payload);
+
+		AsynchronousMdnSender sender = new AsynchronousMdnSender(id, payload, mdnHeaders, url);
+		/* Pending before the record is written, so the writer doesn't compact the journal under it */
+		pending.put(id, Boolean.TRUE);
+		try {
+			await(append(new JournalRecord(toAddRecord(sender), payload)));
+		} catch (IOException e) {
+			/* Without its record the MDN would never be sent nor cleaned up - hand it back */
+			pending.remove(id);
+			try {
+				Files.move(payload, mdnFile);
+			} catch (IOException ex) {
+				sLogger.error("Error while moving MDN [" + payload + "] out of the outbox. " + ex.getMessage(), ex);
+			}
+			throw e;
+		}
+
+		return sender;
+	}
+
+	/**
+	 * Records how often delivery of the MDN has been attempted, so its backoff continues
+	 * after a restart. Losing this record in a crash only means a few more attempts.
+	 */
+	public void recordAttempts(AsynchronousMdnSender sender) {
+		if(pending.containsKey(sender.getId())) {
+			append(new JournalRecord(toAttemptsRecord(sender), null));
+		}
+	}
+
+	/**
+	 * Removes a delivered MDN. Losing this record in a crash only means the MDN is sent twice.
+	 */
+	public void remove(AsynchronousMdnSender sender) {
+		try {
+			Files.deleteIfExists(sender.getMdnFile());
+		} catch (IOException e) {
+			sLogger.error("Error while removing MDN [" + sender.getMdnFile() + "] from the outbox. " + e.getMessage(), e);
+		}
+		complete(sender);
+	}
+
+	/**
+	 * Gives up on an MDN. Its payload is kept in the outbox for inspection.
+	 */
+	public void fail(AsynchronousMdnSender sender) {
+		try {
+			Files.move(sender.getMdnFile(), folder.resolve(sender.getId() + FAILED_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			sLogger.error("Error while moving MDN [" + sender.getMdnFile() + "] aside. " + e.getMessage(), e);
+		}
+		complete(sender);
+	}
+
+	public void close() {
+		synchronized(lock) {
+			if(!isOpen) {
+				return;
+			}
+			isOpen = false;
+			records.add(closeRecord);
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			sLogger.debug("Interrupted while waiting for the outbox journal to be written. " + e.getMessage(), e);
+		}
+
+		try {
+			journal.close();
+		} catch (IOException e) {
+			sLogger.error("Error while closing the outbox journal. " + e.getMessage(), e);
+		}
+	}
+
+	private void complete(AsynchronousMdnSender sender) {
+		pending.remove(sender.getId());
+		append(new JournalRecord((RECORD_DONE + " " + sender.getId() + "\n").getBytes(StandardCharsets.US_ASCII), null));
+	}
+
+	private CompletableFuture<Void> append(JournalRecord record) {
+		synchronized(lock) {
+			if(!isOpen) {
+				record.written.completeExceptionally(new IOException("The MDN outbox [" + folder + "] is closed."));
+			} else {
+				records.add(record);
+			}
+		}
+		return record.written;
+	}
+
+	private static void await(CompletableFuture<Void> written) throws IOException {
+		try {
+			written.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the outbox journal to be written.", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private Map<String, AsynchronousMdnSender> replay(Path journalFile) throws IOException {
+		Map<String, AsynchronousMdnSender> replayed = new LinkedHashMap<String, AsynchronousMdnSender>();
+		if(!Files.exists(journalFile)) {
+			return replayed;
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.ISO_8859_1)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				try {
+					if(RECORD_ADD.equals(fields[0]) && fields.length == 4) {
+						replayed.put(fields[1], new AsynchronousMdnSender(fields[1], folder.resolve(fields[1] + PAYLOAD_EXTENSION),
+								decodeHeaders(fields[3]), decode(fields[2])));
+					} else if(RECORD_DONE.equals(fields[0]) && fields.length == 2) {
+						replayed.remove(fields[1]);
+					} else if(RECORD_ATTEMPTS.equals(fields[0]) && fields.length == 3) {
+						AsynchronousMdnSender sender = replayed.get(fields[1]);
+						if(sender != null) {
+							sender.setAttempts(Integer.parseInt(fields[2]));
+						}
+					} else {
+						/* Most likely the tail of a record that was being written during a crash */
+						sLogger.warn("Skipping unreadable record in outbox journal [" + journalFile + "].");
+					}
+				} catch (IllegalArgumentException e) {
+					sLogger.warn("Skipping unreadable record in outbox journal [" + journalFile + "]. " + e.getMessage());
+				}
+			}
+		}
+
+		for(AsynchronousMdnSender sender : new ArrayList<AsynchronousMdnSender>(replayed.values())) {
+			if(!Files.exists(sender.getMdnFile())) {
+				sLogger.error("MDN [" + sender.getMdnFile() + "] is missing from the outbox and can't be sent.");
+				replayed.remove(sender.getId());
+			}
+		}
+
+		return replayed;
+	}
+
+	private static byte[] toAddRecord(AsynchronousMdnSender sender) {
+		ByteArrayOutputStream headers = new ByteArrayOutputStream();
+		for(Map.Entry<String, String> entry : sender.getMdnHeaders().entrySet()) {
+			byte[] line = (entry.getKey() + ": " + entry.getValue() + "\n").getBytes(StandardCharsets.UTF_8);
+			headers.write(line, 0, line.length);
+		}
+
+		String record = RECORD_ADD + " " + sender.getId() + " " + encode(sender.getUrl().getBytes(StandardCharsets.UTF_8)) +
+				" " + encode(headers.toByteArray()) + "\n";
+		return record.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] toAttemptsRecord(AsynchronousMdnSender sender) {
+		return (RECORD_ATTEMPTS + " " + sender.getId() + " " + sender.getAttempts() + "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static Map<String, String> decodeHeaders(String value) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		for(String line : decode(value).split("\n")) {
+			int separator = line.indexOf(": ");
+			if(separator > 0) {
+				headers.put(line.substring(0, separator), line.substring(separator + 2));
+			}
+		}
+		return headers;
+	}
+
+	private static String encode(byte[] value) {
+		return Base64.getEncoder().encodeToString(value);
+	}
+
+	private static String decode(String value) {
+		return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/* Makes the payload files moved into the outbox durable. Not every platform can sync a folder. */
+	private void forceFolder() {
+		try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			sLogger.debug("Unable to sync outbox folder [" + folder + "]. " + e.getMessage());
+		}
+	}
+
+	private static class JournalRecord {
+		private final byte[] data;
+		private final Path payload;
+		private final CompletableFuture<Void> written = new CompletableFuture<Void>();
+
+		JournalRecord(byte[] data, Path payload) {
+			this.data = data;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Writes whatever records have queued up since the last batch, then forces the new
+	 * payloads, the folder and the journal once for the whole batch.
+	 */
+	private class JournalWriter implements Runnable {
+		@Override
+		public void run() {
+			List<JournalRecord> batch = new ArrayList<JournalRecord>();
+			boolean closed = false;
+			while(!closed) {
+				try {
+					batch.add(records.take());
+				} catch (InterruptedException e) {
+					continue;
+				}
+				records.drainTo(batch);
+				closed = batch.remove(closeRecord);
+
+				try {
+					write(batch);
+					for(JournalRecord record : batch) {
+						record.written.complete(null);
+					}
+				} catch (IOException e) {
+					sLogger.error("Error while writing the outbox journal. " + e.getMessage(), e);
+					for(JournalRecord record : batch) {
+						record.written.completeExceptionally(e);
+					}
+				}
+				batch.clear();
+			}
+		}
+
+		private void write(List<JournalRecord> batch) throws IOException {
+			boolean payloadsAdded = false;
+			for(JournalRecord record : batch) {
+				if(record.payload != null) {
+					forcePayload(record.payload);
+					payloadsAdded = true;
+				}
+				writeFully(journal, ByteBuffer.wrap(record.data));
+			}
+
+			if(payloadsAdded) {
+				forceFolder();
+			}
+			journal.force(false);
+
+			if(pending.isEmpty() && journal.size() > COMPACTION_SIZE) {
+				journal.truncate(0);
+				journal.force(true);
+				sLogger.debug("Outbox journal has been truncated.");
+			}
+		}
+
+		private void forcePayload(Path payload) throws IOException {
+			try (FileChannel channel = FileChannel.open(payload, StandardOpenOption.READ)) {
+				channel.force(false);
+			} catch (NoSuchFileException e) {
+				/* Already delivered */
+			}
+		}
+	}
+}
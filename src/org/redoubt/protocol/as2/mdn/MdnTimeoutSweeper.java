@@ -0,0 +1,377 @@
+package org.redoubt.protocol.as2.mdn;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.redoubt.api.factory.Factory;
+import org.redoubt.api.protocol.IMdnConfirmationListener;
+import org.redoubt.api.protocol.IProtocol;
+import org.redoubt.api.protocol.TransferContext;
+import org.redoubt.protocol.ProtocolException;
+import org.redoubt.transport.TransportConstants;
+import org.redoubt.util.FileSystemUtils;
+
+/**
+ * Notices sent messages whose asynchronous MDN doesn't arrive in time. Every message is
+ * watched until its deadline, ordered in a queue so the sweeper only wakes up when a
+ * deadline is due. An unconfirmed message is sent again from its original payload until
+ * the party's resend attempts are used up, and is then moved to the failure folder.
+ * Only a confirmation reported by the MDN monitor counts - a message the monitor has
+ * dropped for any other reason is still sent again. Deadlines are kept in memory only, so
+ * payloads left in the pending folder by the previous run are moved to the failure folder
+ * on start.
+ */
+public class MdnTimeoutSweeper {
+	private static final Logger sLogger = Logger.getLogger(MdnTimeoutSweeper.class);
+
+	private static final int RESEND_THREADS = 2;
+	private static final String PAYLOAD_EXTENSION = ".payload";
+
+	private static final Object LOCK = new Object();
+	private static final DelayQueue<Deadline> sDeadlines = new DelayQueue<Deadline>();
+	private static Thread sSweeper;
+	private static ExecutorService sResenders;
+	private static boolean sListening;
+	/* Messages with a deadline, and those of them the monitor has reported as confirmed */
+	private static final Set<String> sWatched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private static final Set<String> sConfirmed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private MdnTimeoutSweeper() {}
+
+	/**
+	 * Moves the payloads the previous run was still waiting on to the failure folder. They
+	 * can't be watched again, the deadlines and the transports that sent them are gone.
+	 */
+	public static void start() {
+		Path pendingFolder = Factory.getInstance().getServerConfigurationManager().getMdnPendingFolder();
+		if(!Files.isDirectory(pendingFolder)) {
+			return;
+		}
+
+		try (DirectoryStream<Path> payloads = Files.newDirectoryStream(pendingFolder, "*" + PAYLOAD_EXTENSION)) {
+			for(Path payload : payloads) {
+				String originalFileName = toOriginalFileName(payload);
+				Path failedFile = moveToFailureFolder(payload, originalFileName);
+				sLogger.error("Message with payload [" + originalFileName + "] was still awaiting a MDN when the server was stopped. " + 
+						"Its payload has been moved to [" + failedFile + "].");
+			}
+		} catch (IOException e) {
+			sLogger.error("Error while moving the payloads left in [" + pendingFolder + "] to the failure folder. " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Creates a copy of the payload that is kept until the message has been confirmed.
+	 */
+	public static Path retainPayload(Path payload, String messageId, String originalFileName) throws IOException {
+		synchronized(LOCK) {
+			if(!sListening) {
+				Factory.getInstance().getMdnMonitor().addConfirmationListener(new ConfirmationListener());
+				sListening = true;
+			}
+		}
+		/* From now on, a confirmation - even one that comes with the response - is recorded */
+		sWatched.add(messageId);
+
+		Path pendingFolder = Factory.getInstance().getServerConfigurationManager().getMdnPendingFolder();
+		Files.createDirectories(pendingFolder);
+		/* The original name comes first, so it can be told from the file alone */
+		Path retained = Files.createTempFile(pendingFolder, (originalFileName == null ? "payload" : originalFileName) + ".", PAYLOAD_EXTENSION);
+		Files.copy(payload, retained, StandardCopyOption.REPLACE_EXISTING);
+		return retained;
+	}
+
+	/**
+	 * Drops the payload of a message that couldn't be sent.
+	 */
+	public static void discardPayload(String messageId, Path retainedPayload) {
+		sWatched.remove(messageId);
+		sConfirmed.remove(messageId);
+		deletePayload(retainedPayload);
+	}
+
+	/**
+	 * Starts watching a sent message. The retained payload belongs to the sweeper from now on.
+	 * It is removed straight away if the message has already been confirmed, and failed if
+	 * the MDN monitor doesn't track the message, so no MDN could ever confirm it.
+	 * @param attempt how many times the message has been sent again so far
+	 */
+	public static void watch(String messageId, Path retainedPayload, String originalFileName, IProtocol protocol,
+			long timeoutSeconds, int resendAttempts, int attempt) {
+		Deadline deadline = new Deadline(messageId, retainedPayload, originalFileName, protocol,
+				TimeUnit.SECONDS.toMillis(timeoutSeconds), resendAttempts, attempt);
+
+		if(sConfirmed.remove(messageId)) {
+			/* Confirmed with a synchronous MDN, or an asynchronous one that was quick */
+			sWatched.remove(messageId);
+			deletePayload(retainedPayload);
+			return;
+		}
+
+		if(!Factory.getInstance().getMdnMonitor().isMessageRegistered(messageId)) {
+			/* Refused or already evicted by the monitor */
+			sWatched.remove(messageId);
+			try {
+				Path failedFile = moveToFailureFolder(retainedPayload, originalFileName);
+				sLogger.error("Message with MessageId [" + messageId + "] is not monitored, its MDN can't be matched. " + 
+						"Its payload has been moved to [" + failedFile + "].");
+			} catch (IOException e) {
+				sLogger.error("Message with MessageId [" + messageId + "] is not monitored and its payload [" + 
+						retainedPayload + "] can't be moved to the failure folder. " + e.getMessage(), e);
+			}
+			return;
+		}
+
+		schedule(deadline);
+		sLogger.debug("Message with MessageId [" + messageId + "] is expected to be confirmed within [" + timeoutSeconds + "] seconds.");
+	}
+
+	private static void schedule(Deadline deadline) {
+		synchronized(LOCK) {
+			if(sSweeper == null) {
+				sResenders = Executors.newFixedThreadPool(RESEND_THREADS, new ResenderThreadFactory());
+				sSweeper = new Thread(new Sweeper(), "MdnTimeoutSweeper");
+				sSweeper.setDaemon(true);
+				sSweeper.start();
+			}
+			sWatched.add(deadline.messageId);
+			sDeadlines.add(deadline);
+		}
+	}
+
+	public static void shutdown() {
+		Thread sweeper;
+		ExecutorService resenders;
+		synchronized(LOCK) {
+			sweeper = sSweeper;
+			resenders = sResenders;
+			sSweeper = null;
+			sResenders = null;
+		}
+
+		if(sweeper == null) {
+			return;
+		}
+
+		sweeper.interrupt();
+		resenders.shutdown();
+		try {
+			sweeper.join();
+			resenders.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			sLogger.debug("Interrupted while waiting for messages to be sent again. " + e.getMessage(), e);
+		}
+
+		/* Payloads of the messages confirmed meanwhile aren't needed any more */
+		int pending = 0;
+		for(Deadline deadline : sDeadlines) {
+			if(sConfirmed.contains(deadline.messageId)) {
+				deletePayload(deadline.payload);
+			} else {
+				pending++;
+			}
+		}
+		if(pending > 0) {
+			sLogger.info("[" + pending + "] messages were still awaiting an MDN. Their payloads remain in [" +
+					Factory.getInstance().getServerConfigurationManager().getMdnPendingFolder() + 
+					"] and will be moved to the failure folder on the next start.");
+		}
+		sDeadlines.clear();
+		sWatched.clear();
+		sConfirmed.clear();
+	}
+
+	private static void expire(Deadline deadline) {
+		sWatched.remove(deadline.messageId);
+		if(sConfirmed.remove(deadline.messageId)) {
+			deletePayload(deadline.payload);
+			return;
+		}
+
+		if(deadline.attempt < deadline.resendAttempts) {
+			sLogger.warn("Message with MessageId [" + deadline.messageId + "] hasn't been confirmed with a MDN in time. It will be sent again - attempt [" +
+					(deadline.attempt + 1) + "] of [" + deadline.resendAttempts + "].");
+			synchronized(LOCK) {
+				if(sResenders != null) {
+					sResenders.execute(new Resend(deadline));
+					return;
+				}
+			}
+		}
+
+		fail(deadline);
+	}
+
+	private static void fail(Deadline deadline) {
+		try {
+			Path failedFile = moveToFailureFolder(deadline.payload, deadline.originalFileName);
+			sLogger.error("Message with MessageId [" + deadline.messageId + "] hasn't been confirmed with a MDN after [" +
+					deadline.attempt + "] resend attempts. Its payload has been moved to [" + failedFile + "].");
+		} catch (IOException e) {
+			sLogger.error("Message with MessageId [" + deadline.messageId + "] hasn't been confirmed with a MDN and its payload [" +
+					deadline.payload + "] can't be moved to the failure folder. " + e.getMessage(), e);
+		}
+	}
+
+	private static Path moveToFailureFolder(Path payload, String originalFileName) throws IOException {
+		Path failureFolder = Factory.getInstance().getServerConfigurationManager().getMdnFailureFolder();
+		Files.createDirectories(failureFolder);
+		Path failedFile = failureFolder.resolve(originalFileName);
+		if(Files.exists(failedFile)) {
+			failedFile = failureFolder.resolve(System.currentTimeMillis() + "_" + originalFileName);
+		}
+		Files.move(payload, failedFile);
+		return failedFile;
+	}
+
+	/* Strips the random part and extension retainPayload has added */
+	private static String toOriginalFileName(Path payload) {
+		String name = payload.getFileName().toString();
+		name = name.substring(0, name.length() - PAYLOAD_EXTENSION.length());
+		int random = name.lastIndexOf('.');
+		return random > 0 ? name.substring(0, random) : name;
+	}
+
+	private static void deletePayload(Path payload) {
+		try {
+			Files.deleteIfExists(payload);
+		} catch (IOException e) {
+			sLogger.error("Error while removing payload [" + payload + "]. " + e.getMessage(), e);
+		}
+	}
+
+	private static class Deadline implements Delayed {
+		private final String messageId;
+		private final Path payload;
+		private final String originalFileName;
+		private final IProtocol protocol;
+		private final long timeoutMillis;
+		private final int resendAttempts;
+		private final int attempt;
+		private final long due;
+
+		Deadline(String messageId, Path payload, String originalFileName, IProtocol protocol,
+				long timeoutMillis, int resendAttempts, int attempt) {
+			this.messageId = messageId;
+			this.payload = payload;
+			this.originalFileName = originalFileName;
+			this.protocol = protocol;
+			this.timeoutMillis = timeoutMillis;
+			this.resendAttempts = resendAttempts;
+			this.attempt = attempt;
+			this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			if(other instanceof Deadline) {
+				return Long.compare(due, ((Deadline) other).due);
+			}
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+		}
+	}
+
+	private static class Sweeper implements Runnable {
+		@Override
+		public void run() {
+			while(true) {
+				Deadline deadline;
+				try {
+					deadline = sDeadlines.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					expire(deadline);
+				} catch (Exception e) {
+					sLogger.error("Error while checking whether message with MessageId [" + deadline.messageId + "] has been confirmed. " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the original payload again as a new message. The new message is watched by
+	 * the protocol, so the old payload is no longer needed once it has been sent.
+	 */
+	private static class Resend implements Runnable {
+		private final Deadline deadline;
+
+		Resend(Deadline deadline) {
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			Path workFile = null;
+			try {
+				workFile = FileSystemUtils.createWorkFile();
+				Files.copy(deadline.payload, workFile, StandardCopyOption.REPLACE_EXISTING);
+
+				TransferContext context = new TransferContext();
+				context.put(TransportConstants.CONTEXT_FULL_TARGET, workFile.toString());
+				context.put(TransportConstants.CONTEXT_ORIGINAL_FILE_NAME, deadline.originalFileName);
+				context.put(TransportConstants.CONTEXT_MDN_RESEND_ATTEMPT, deadline.attempt + 1);
+				deadline.protocol.process(context);
+
+				/* The new message is watched under its own Message-ID */
+				Factory.getInstance().getMdnMonitor().deregisterMessage(deadline.messageId);
+				deletePayload(deadline.payload);
+			} catch (ProtocolException | IOException e) {
+				sLogger.error("Error while sending message with MessageId [" + deadline.messageId + "] again. " + e.getMessage(), e);
+				if(deadline.attempt + 1 < deadline.resendAttempts) {
+					/* Count the failed send as an attempt and try again after another timeout */
+					schedule(new Deadline(deadline.messageId, deadline.payload, deadline.originalFileName, deadline.protocol,
+							deadline.timeoutMillis, deadline.resendAttempts, deadline.attempt + 1));
+				} else {
+					fail(new Deadline(deadline.messageId, deadline.payload, deadline.originalFileName, deadline.protocol,
+							deadline.timeoutMillis, deadline.resendAttempts, deadline.attempt + 1));
+				}
+			} finally {
+				if(workFile != null) {
+					FileSystemUtils.removeWorkFile(workFile);
+				}
+			}
+		}
+	}
+
+	private static class ConfirmationListener implements IMdnConfirmationListener {
+		@Override
+		public void messageConfirmed(String messageId) {
+			if(sWatched.contains(messageId)) {
+				sConfirmed.add(messageId);
+			}
+		}
+	}
+
+	private static class ResenderThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "MdnResender-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -37,6 +37,27 @@ public class FileSystemTransport extends BaseTransport {
             throw new TransportException("Polling interval [" + pollingInterval + "] is not a valid number.");
         }
         
+        int workerThreads = fsSettings.getWorkerThreads();
+        int maxInFlight = fsSettings.getMaxInFlight();
+        sLogger.debug("Files are processed by [" + workerThreads + "] workers, with up to [" + maxInFlight + "] files in flight.");
+        
+        if(workerThreads < 1) {
+            throw new TransportException("Number of worker threads [" + workerThreads + "] is not a valid number.");
+        }
+        
+        if(maxInFlight < workerThreads) {
+            throw new TransportException("Max files in flight [" + maxInFlight + "] can't be less than the number of worker threads [" + workerThreads + "].");
+        }
+        
+        if(fsSettings.isWatchFolder()) {
+            int reconciliationInterval = fsSettings.getReconciliationInterval();
+            sLogger.debug("Folder is watched for changes and reconciled every [" + reconciliationInterval + "] seconds.");
+            
+            if(reconciliationInterval < 1) {
+                throw new TransportException("Reconciliation interval [" + reconciliationInterval + "] is not a valid number.");
+            }
+        }
+        
         pollingThread = new FolderPollingThread(fsSettings, getProtocol()); 
     }
 
@@ -9,6 +9,13 @@ import org.redoubt.transport.SettingsHolder;
 public class FileSystemTransportSettings extends SettingsHolder implements ITransportSettings {
     private static final long serialVersionUID = -6133544684476689296L;
     public static final String TRANSPORT_NAME = "file_system";
+    
+    public FileSystemTransportSettings() {
+        //Set default values
+        put(FileSystemSettingsKeyring.WORKER_THREADS, Integer.toString(1));
+        put(FileSystemSettingsKeyring.WATCH_FOLDER, Boolean.toString(false));
+        put(FileSystemSettingsKeyring.RECONCILIATION_INTERVAL, Integer.toString(60));
+    }
 
     @Override
     public String getTransportName() {
@@ -39,9 +46,64 @@ public class FileSystemTransportSettings extends SettingsHolder implements ITran
         put(FileSystemSettingsKeyring.POLLING_INTERVAL, pollingInterval);
     }
     
+    /**
+     * @return the number of files of this transport that are processed in parallel
+     */
+    public int getWorkerThreads() {
+        return Integer.parseInt((String) get(FileSystemSettingsKeyring.WORKER_THREADS));
+    }
+    
+    public void setWorkerThreads(int workerThreads) {
+        put(FileSystemSettingsKeyring.WORKER_THREADS, Integer.toString(workerThreads));
+    }
+    
+    /**
+     * @return the number of files claimed from the folder that may wait for or be in processing 
+     * at any time, twice the number of workers unless configured
+     */
+    public int getMaxInFlight() {
+        String maxInFlight = (String) get(FileSystemSettingsKeyring.MAX_IN_FLIGHT);
+        if(maxInFlight == null) {
+            return getWorkerThreads() * 2;
+        }
+        return Integer.parseInt(maxInFlight);
+    }
+    
+    public void setMaxInFlight(int maxInFlight) {
+        put(FileSystemSettingsKeyring.MAX_IN_FLIGHT, Integer.toString(maxInFlight));
+    }
+    
+    /**
+     * @return whether new files are detected through file system events instead of 
+     * walking the folder every polling interval
+     */
+    public boolean isWatchFolder() {
+        return Boolean.parseBoolean((String) get(FileSystemSettingsKeyring.WATCH_FOLDER));
+    }
+    
+    public void setWatchFolder(boolean watchFolder) {
+        put(FileSystemSettingsKeyring.WATCH_FOLDER, Boolean.toString(watchFolder));
+    }
+    
+    /**
+     * @return the seconds between two walks of a watched folder, which pick up any files 
+     * whose events were missed
+     */
+    public int getReconciliationInterval() {
+        return Integer.parseInt((String) get(FileSystemSettingsKeyring.RECONCILIATION_INTERVAL));
+    }
+    
+    public void setReconciliationInterval(int reconciliationInterval) {
+        put(FileSystemSettingsKeyring.RECONCILIATION_INTERVAL, Integer.toString(reconciliationInterval));
+    }
+    
     public class FileSystemSettingsKeyring {
         public static final String NAME = "name";
         public static final String FOLDER = "folder";
         public static final String POLLING_INTERVAL = "pollingInterval";
+        public static final String WORKER_THREADS = "workerThreads";
+        public static final String MAX_IN_FLIGHT = "maxInFlight";
+        public static final String WATCH_FOLDER = "watchFolder";
+        public static final String RECONCILIATION_INTERVAL = "reconciliationInterval";
     }
 }
@@ -5,20 +5,44 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.redoubt.api.factory.Factory;
 import org.redoubt.api.protocol.IProtocol;
 import org.redoubt.api.protocol.TransferContext;
 import org.redoubt.protocol.ProtocolException;
 import org.redoubt.transport.TransportConstants;
 import org.redoubt.util.FileSystemUtils;
+import org.redoubt.util.ThreadUtils;
 
+/**
+ * Claims the files that appear in the folder of a file system transport and hands
+ * them over to a pool of workers. A file is claimed only while fewer than the 
+ * configured maximum are waiting for or being processed. The folder is either walked
+ * every polling interval or, when watched, as soon as it changes.
+ */
 public class FolderPollingThread extends Thread {
     private static final Logger sLogger = Logger.getLogger(FolderPollingThread.class);
-    private boolean isRunning;
+    private static final long WORKERS_SHUTDOWN_TIMEOUT_SECONDS = 60;
+    private static final long WATCH_QUIET_PERIOD_MILLIS = 100;
+    
+    private volatile boolean isRunning;
     private FileSystemTransportSettings fsSettings;
     private IProtocol protocol;
+    private ExecutorService workers;
+    private Semaphore inFlight;
+    private WatchService watcher;
     
     public FolderPollingThread(FileSystemTransportSettings fsSettings, IProtocol protocol) {
         this.isRunning = false;
@@ -30,63 +54,198 @@ public class FolderPollingThread extends Thread {
     public void run() {
         Thread.currentThread().setName("FolderPollingThread-" + System.currentTimeMillis());
         isRunning = true;
+        startWorkers();
+        
+        if(fsSettings.isWatchFolder()) {
+            startWatching();
+        }
+        
         while(isRunning) {
-            sLogger.debug("Polling folder [" + fsSettings.getFolder() + "]...");
+            scanFolder();
             
             try {
-                Files.walkFileTree(fsSettings.getFolder(), new SimpleFileVisitor<Path>() {
+                if(watcher != null) {
+                    awaitChanges();
+                } else {
+                    Thread.sleep(fsSettings.getPollingInterval() * 1000);
+                }
+            } catch (InterruptedException e) {
+                sLogger.debug("[" + Thread.currentThread().getName() + "] has been interrupted while sleeping. " + e.getMessage(), e);
+            }
+        }
+        
+        stopWatching();
+        stopWorkers();
+    }
+    
+    private void scanFolder() {
+        sLogger.debug("Polling folder [" + fsSettings.getFolder() + "]...");
+        
+        try {
+            Files.walkFileTree(fsSettings.getFolder(), new SimpleFileVisitor<Path>() {
 
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        if(dir.equals(fsSettings.getFolder())) {
-                            return FileVisitResult.CONTINUE;
-                        } else {
-                            return FileVisitResult.SKIP_SUBTREE;
-                        }
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if(dir.equals(fsSettings.getFolder())) {
+                        return FileVisitResult.CONTINUE;
+                    } else {
+                        return FileVisitResult.SKIP_SUBTREE;
                     }
+                }
 
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                        sLogger.debug("File [" + file.toString() + "] will be consumed.");
-                        Path workFile = FileSystemUtils.createWorkFile(); 
-                        sLogger.debug("Moving file [" + file.toString() + "] to [" + workFile.toString() + "] for processing.");
-                        Files.move(file, workFile);
-                        
-                        FileSystemUtils.backupFile(workFile);
-                        
-                        TransferContext context = new TransferContext();
-                        context.put(TransportConstants.CONTEXT_FULL_TARGET, workFile.toString());
-                        context.put(TransportConstants.CONTEXT_ORIGINAL_FILE_NAME, file.getFileName().toString());
-                        
-                        try {
-                            protocol.process(context);
-                        } catch (ProtocolException e) {
-                            sLogger.error("An error has occured while processing file ["+ file.toString() + "]. " + e.getMessage(), e);
-                            throw new IOException(e.getMessage(), e);
-                        } finally {
-                            FileSystemUtils.backupFile(workFile);
-                            FileSystemUtils.removeWorkFile(workFile);
-                        }
-                        
-                        sLogger.info("File [" + file.toString() + "] has been sucesfully processed.");
-                        
-                        return FileVisitResult.CONTINUE;
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if(!isRunning || !claimSlot()) {
+                        return FileVisitResult.TERMINATE;
                     }
+                    
+                    Path workFile;
+                    try {
+                        workFile = claimFile(file);
+                    } catch(IOException e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                    
+                    dispatch(file, workFile);
+                    return FileVisitResult.CONTINUE;
+                }
 
-                });
-            } catch (Exception e1) {
-                sLogger.error("Error while listing files  inside [" + fsSettings.getFolder() + "]. " + e1.getMessage(), e1);
-            }
-            
+            });
+        } catch (Exception e1) {
+            sLogger.error("Error while listing files  inside [" + fsSettings.getFolder() + "]. " + e1.getMessage(), e1);
+        }
+    }
+    
+    private void startWatching() {
+        try {
+            watcher = fsSettings.getFolder().getFileSystem().newWatchService();
+            fsSettings.getFolder().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            sLogger.debug("Watching folder [" + fsSettings.getFolder() + "] for new files.");
+        } catch (IOException | UnsupportedOperationException e) {
+            sLogger.warn("Folder [" + fsSettings.getFolder() + "] can't be watched, it will be polled every [" + 
+                    fsSettings.getPollingInterval() + "] seconds instead. " + e.getMessage(), e);
+            stopWatching();
+        }
+    }
+    
+    private void stopWatching() {
+        if(watcher != null) {
             try {
-                Thread.sleep(fsSettings.getPollingInterval() * 1000);
-            } catch (InterruptedException e) {
-                sLogger.debug("[" + Thread.currentThread().getName() + "] has been interrupted while sleeping. " + e.getMessage(), e);
+                watcher.close();
+            } catch (IOException e) {
+                sLogger.debug("Unable to close the watch service of folder [" + fsSettings.getFolder() + "]. " + e.getMessage(), e);
             }
+            watcher = null;
+        }
+    }
+    
+    /*
+     * Returns once the folder has changed and then stayed quiet for a moment, so a file that 
+     * is still being written isn't claimed halfway, or when it's time for a reconciliation walk.
+     */
+    private void awaitChanges() throws InterruptedException {
+        WatchKey key = watcher.poll(fsSettings.getReconciliationInterval(), TimeUnit.SECONDS);
+        if(key == null) {
+            sLogger.debug("No changes in folder [" + fsSettings.getFolder() + "], reconciling.");
+            return;
+        }
+        
+        while(key != null) {
+            key.pollEvents();
+            if(!key.reset()) {
+                sLogger.warn("Folder [" + fsSettings.getFolder() + "] is no longer watched, it will be polled every [" + 
+                        fsSettings.getPollingInterval() + "] seconds instead.");
+                stopWatching();
+                return;
+            }
+            key = watcher.poll(WATCH_QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void startWorkers() {
+        int workerThreads = fsSettings.getWorkerThreads();
+        int maxInFlight = fsSettings.getMaxInFlight();
+        
+        inFlight = new Semaphore(maxInFlight);
+        
+        if(Factory.getInstance().getServerConfigurationManager().useVirtualThreads()) {
+            /* Each claimed file gets a thread of its own, so up to maxInFlight files are processed at once */
+            workers = ThreadUtils.newVirtualThreadPerTaskExecutor(getName() + "-Worker-");
+            if(workers != null) {
+                sLogger.debug("Files of [" + getName() + "] are processed on virtual threads.");
+                return;
+            }
+            sLogger.warn("Virtual threads are not supported by this JVM, files of [" + getName() + "] are processed by [" + 
+                    workerThreads + "] worker threads instead.");
+        }
+        
+        /* No more than maxInFlight files are ever claimed, so the queue can't overflow */
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<Runnable>(maxInFlight), new WorkerThreadFactory(getName()));
+    }
+    
+    private void stopWorkers() {
+        workers.shutdown();
+        try {
+            if(!workers.awaitTermination(WORKERS_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                sLogger.warn("Workers of [" + getName() + "] are still processing files after [" + 
+                        WORKERS_SHUTDOWN_TIMEOUT_SECONDS + "] seconds.");
+            }
+        } catch (InterruptedException e) {
+            sLogger.debug("[" + getName() + "] has been interrupted while waiting for its workers. " + e.getMessage(), e);
+        }
+    }
+    
+    /* Blocks while the maximum number of files is in flight */
+    private boolean claimSlot() {
+        try {
+            inFlight.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            sLogger.debug("[" + getName() + "] has been interrupted while waiting for a free worker. " + e.getMessage(), e);
+            return false;
+        }
+    }
+    
+    private Path claimFile(Path file) throws IOException {
+        sLogger.debug("File [" + file.toString() + "] will be consumed.");
+        Path workFile = FileSystemUtils.createWorkFile(); 
+        sLogger.debug("Moving file [" + file.toString() + "] to [" + workFile.toString() + "] for processing.");
+        Files.move(file, workFile);
+        
+        FileSystemUtils.backupFile(workFile);
+        return workFile;
+    }
+    
+    private void dispatch(final Path file, final Path workFile) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    process(file, workFile);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+    
+    private void process(Path file, Path workFile) {
+        TransferContext context = new TransferContext();
+        context.put(TransportConstants.CONTEXT_FULL_TARGET, workFile.toString());
+        context.put(TransportConstants.CONTEXT_ORIGINAL_FILE_NAME, file.getFileName().toString());
+        
+        try {
+            protocol.process(context);
+            sLogger.info("File [" + file.toString() + "] has been sucesfully processed.");
+        } catch (ProtocolException e) {
+            sLogger.error("An error has occured while processing file ["+ file.toString() + "]. " + e.getMessage(), e);
+        } finally {
+            FileSystemUtils.backupFile(workFile);
+            FileSystemUtils.removeWorkFile(workFile);
         }
     }
-
-
 
     public boolean isRunning() {
         return isRunning;
@@ -96,4 +255,17 @@ public class FolderPollingThread extends Thread {
         isRunning = false;
     }
     
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+        
+        WorkerThreadFactory(String pollingThreadName) {
+            prefix = pollingThreadName + "-Worker-";
+        }
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, prefix + count.incrementAndGet());
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package org.redoubt.transport.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.redoubt.api.factory.Factory;
+
+/**
+ * Decides whether an inbound request may be received, before its body is read. Every
+ * configured partner has a token bucket that refills at the configured rate, and the
+ * number of requests received and processed at the same time is limited for the whole
+ * transport. A limit of 0 turns the check off.
+ * <p>
+ * AS2-From isn't authenticated at this point, so requests from names no party is
+ * configured for all share one bucket - a sender can't get past the limit, or make the
+ * buckets pile up, by making names up.
+ */
+public class AdmissionController {
+	private final double tokensPerNano;
+	private final double burst;
+	private final Semaphore slots;
+	private final int retryAfterSeconds;
+	private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final TokenBucket unknownPartners;
+
+	public AdmissionController(HttpTransportSettings settings) {
+		double requestsPerSecond = settings.getPartnerRequestsPerSecond();
+		tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		burst = Math.max(1, settings.getPartnerBurst());
+		unknownPartners = new TokenBucket(burst, System.nanoTime());
+		int maxConcurrentRequests = settings.getMaxConcurrentRequests();
+		slots = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+		retryAfterSeconds = settings.getRetryAfterSeconds();
+	}
+
+	/**
+	 * @return the admission, which has to be released once the request is done, or a
+	 * refusal telling the partner when to retry
+	 */
+	public Admission admit(String partner) {
+		/* The slot is taken first, so a request refused for concurrency doesn't use up a token */
+		if(slots != null && !slots.tryAcquire()) {
+			return Admission.refused(Admission.REASON_CONCURRENCY, retryAfterSeconds);
+		}
+
+		if(tokensPerNano > 0) {
+			long waitNanos = bucketOf(partner).tryAcquire(System.nanoTime());
+			if(waitNanos > 0) {
+				if(slots != null) {
+					slots.release();
+				}
+				return Admission.refused(Admission.REASON_RATE,
+						(int) Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1)));
+			}
+		}
+		return new Admission(slots);
+	}
+
+	private TokenBucket bucketOf(String partner) {
+		if(partner == null || Factory.getInstance().getPartyManager().getPartyById(partner) == null) {
+			return unknownPartners;
+		}
+
+		TokenBucket bucket = buckets.get(partner);
+		if(bucket == null) {
+			TokenBucket created = new TokenBucket(burst, System.nanoTime());
+			bucket = buckets.putIfAbsent(partner, created);
+			if(bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket;
+	}
+
+	private class TokenBucket {
+		private double tokens;
+		private long refilled;
+
+		TokenBucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.refilled = now;
+		}
+
+		/**
+		 * @return 0 if a token has been taken, otherwise how long until there will be one
+		 */
+		synchronized long tryAcquire(long now) {
+			tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+			refilled = now;
+			if(tokens >= 1) {
+				tokens--;
+				return 0;
+			}
+			return (long) Math.ceil((1 - tokens) / tokensPerNano);
+		}
+	}
+
+	public static class Admission {
+		public static final String REASON_RATE = "rate";
+		public static final String REASON_CONCURRENCY = "concurrency";
+
+		private final Semaphore slots;
+		private final String refusal;
+		private final int retryAfterSeconds;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Admission(Semaphore slots) {
+			this(slots, null, 0);
+		}
+
+		private Admission(Semaphore slots, String refusal, int retryAfterSeconds) {
+			this.slots = slots;
+			this.refusal = refusal;
+			this.retryAfterSeconds = retryAfterSeconds;
+		}
+
+		static Admission refused(String reason, int retryAfterSeconds) {
+			return new Admission(null, reason, retryAfterSeconds);
+		}
+
+		public boolean isAdmitted() {
+			return refusal == null;
+		}
+
+		/**
+		 * @return {@link #REASON_RATE} or {@link #REASON_CONCURRENCY} for a refused request
+		 */
+		public String getRefusal() {
+			return refusal;
+		}
+
+		public int getRetryAfterSeconds() {
+			return retryAfterSeconds;
+		}
+
+		/* May be called more than once, only the first call frees the slot */
+		public void release() {
+			if(slots != null && released.compareAndSet(false, true)) {
+				slots.release();
+			}
+		}
+	}
+}
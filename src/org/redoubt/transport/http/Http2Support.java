@@ -0,0 +1,79 @@
+package org.redoubt.transport.http;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+
+/**
+ * Creates the HTTP/2 connection factories. The Jetty HTTP/2 modules aren't needed for
+ * HTTP/1.1, so they are looked up at runtime and only have to be added to lib when
+ * HTTP/2 is enabled.
+ */
+public class Http2Support {
+	private static final Logger sLogger = Logger.getLogger(Http2Support.class);
+
+	private static final String H2_FACTORY = "org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory";
+	private static final String H2C_FACTORY = "org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory";
+	private static final String ALPN_FACTORY = "org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory";
+
+	public static final String ALPN_PROTOCOL = "alpn";
+
+	private Http2Support() {}
+
+	public static boolean isSupported() {
+		return isPresent(H2C_FACTORY);
+	}
+
+	public static boolean isAlpnSupported() {
+		return isPresent(ALPN_FACTORY);
+	}
+
+	/**
+	 * @return the factory for HTTP/2 over cleartext, negotiated with the prior knowledge
+	 * preface or an upgrade from HTTP/1.1
+	 */
+	public static ConnectionFactory newH2cConnectionFactory(HttpConfiguration httpConfiguration) {
+		return newConnectionFactory(H2C_FACTORY, httpConfiguration);
+	}
+
+	/**
+	 * @return the factory for HTTP/2 over TLS
+	 */
+	public static ConnectionFactory newH2ConnectionFactory(HttpConfiguration httpConfiguration) {
+		return newConnectionFactory(H2_FACTORY, httpConfiguration);
+	}
+
+	/**
+	 * @return the factory that picks h2 or HTTP/1.1 during the TLS handshake, HTTP/1.1
+	 * for clients that don't use ALPN
+	 */
+	public static ConnectionFactory newAlpnConnectionFactory(String defaultProtocol, String... protocols) {
+		try {
+			Class<?> factoryClass = Class.forName(ALPN_FACTORY);
+			Object factory = factoryClass.getConstructor(String[].class).newInstance((Object) protocols);
+			factoryClass.getMethod("setDefaultProtocol", String.class).invoke(factory, defaultProtocol);
+			return (ConnectionFactory) factory;
+		} catch (Exception e) {
+			sLogger.warn("Unable to create the ALPN connection factory. " + e.getMessage(), e);
+			return null;
+		}
+	}
+
+	private static ConnectionFactory newConnectionFactory(String className, HttpConfiguration httpConfiguration) {
+		try {
+			return (ConnectionFactory) Class.forName(className).getConstructor(HttpConfiguration.class).newInstance(httpConfiguration);
+		} catch (Exception e) {
+			sLogger.warn("Unable to create HTTP/2 connection factory [" + className + "]. " + e.getMessage(), e);
+			return null;
+		}
+	}
+
+	private static boolean isPresent(String className) {
+		try {
+			Class.forName(className);
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+}
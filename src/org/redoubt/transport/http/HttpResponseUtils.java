@@ -0,0 +1,32 @@
+package org.redoubt.transport.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.redoubt.util.FileSystemUtils;
+
+public class HttpResponseUtils {
+	private HttpResponseUtils() {}
+
+	/**
+	 * Writes the file as the response body. A Jetty response gets the file as a channel, so
+	 * it isn't copied through the servlet stream.
+	 */
+	public static void sendFile(Path file, HttpServletResponse resp) throws IOException {
+		OutputStream out = resp.getOutputStream();
+		if(!(out instanceof HttpOutput)) {
+			FileSystemUtils.copyFileToStream(file, out);
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			((HttpOutput) out).sendContent(channel);
+		}
+	}
+}
@@ -1,12 +1,34 @@
 package org.redoubt.transport.http;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSessionContext;
 import javax.servlet.http.HttpServlet;
 
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.component.AbstractLifeCycle.AbstractLifeCycleListener;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.redoubt.api.configuration.IServerConfigurationManager;
 import org.redoubt.api.factory.Factory;
+import org.redoubt.api.factory.FactoryConstants;
 import org.redoubt.api.transport.ITransportSettings;
 import org.redoubt.transport.BaseTransport;
 import org.redoubt.transport.TransportException;
@@ -15,6 +37,7 @@ public class HttpTransport extends BaseTransport {
 	private static final Logger sLogger = Logger.getLogger(HttpTransport.class);
 	private HttpTransportSettings httpSettings;
 	private Server server;
+	private static final String TLS_SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
 	
 	@Override
 	public void init(ITransportSettings settings) throws TransportException {
@@ -26,7 +49,8 @@ public class HttpTransport extends BaseTransport {
 		
 		int port = httpSettings.getPort();
         sLogger.debug("Port is [" + port + "].");
-        server = new Server(port);
+        server = new Server(createThreadPool());
+        server.addConnector(createConnector(port));
         
         String contextPath = httpSettings.getContextPath();
         sLogger.debug("Context path is [" + contextPath + "].");
@@ -36,7 +60,136 @@ public class HttpTransport extends BaseTransport {
         
         server.setHandler(context);
         HttpServlet servlet = Factory.getInstance().getHttpListener(httpSettings, getProtocol());
-        context.addServlet(new ServletHolder(servlet), "/*");
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(httpSettings.isAsyncProcessing());
+        sLogger.debug("Asynchronous processing is [" + httpSettings.isAsyncProcessing() + "].");
+        context.addServlet(holder, "/*");
+	}
+
+	private QueuedThreadPool createThreadPool() {
+		int maxQueuedJobs = httpSettings.getMaxQueuedJobs();
+		BlockingQueue<Runnable> queue = maxQueuedJobs == Integer.MAX_VALUE ? null : 
+			new BlockingArrayQueue<Runnable>(Math.min(maxQueuedJobs, 1024), 1024, maxQueuedJobs);
+		
+		sLogger.debug("Server threads are [" + httpSettings.getMinThreads() + "] to [" + httpSettings.getMaxThreads() + 
+				"], queued jobs are limited to [" + maxQueuedJobs + "].");
+		QueuedThreadPool threadPool = new QueuedThreadPool(httpSettings.getMaxThreads(), httpSettings.getMinThreads(), 
+				(int) TimeUnit.SECONDS.toMillis(httpSettings.getThreadIdleTimeoutSeconds()), queue);
+		threadPool.setName("HttpTransport-" + httpSettings.getName());
+		return threadPool;
+	}
+	
+	private ServerConnector createConnector(int port) throws TransportException {
+		HttpConfiguration httpConfiguration = new HttpConfiguration();
+		httpConfiguration.setRequestHeaderSize(httpSettings.getRequestHeaderSize());
+		httpConfiguration.setResponseHeaderSize(httpSettings.getResponseHeaderSize());
+		httpConfiguration.setOutputBufferSize(httpSettings.getOutputBufferSize());
+		httpConfiguration.setSendServerVersion(false);
+		
+		boolean http2 = isHttp2Available();
+		List<ConnectionFactory> factories = new ArrayList<ConnectionFactory>();
+		if(httpSettings.isTlsEnabled()) {
+			sLogger.debug("TLS is enabled.");
+			httpConfiguration.setSecureScheme("https");
+			httpConfiguration.setSecurePort(port);
+			httpConfiguration.addCustomizer(new SecureRequestCustomizer());
+			
+			/* ALPN is only offered when h2 can be served behind it */
+			ConnectionFactory alpn = null;
+			ConnectionFactory h2 = null;
+			if(http2) {
+				h2 = Http2Support.newH2ConnectionFactory(httpConfiguration);
+				if(h2 != null) {
+					alpn = Http2Support.newAlpnConnectionFactory(HttpVersion.HTTP_1_1.asString(), "h2", HttpVersion.HTTP_1_1.asString());
+				}
+				if(alpn == null) {
+					sLogger.warn("HTTP/2 could not be set up for HTTP transport [" + httpSettings.getName() + 
+							"]. Only HTTP/1.1 will be served over TLS.");
+				}
+			}
+			
+			SslContextFactory sslContextFactory = createSslContextFactory();
+			if(alpn != null && h2 != null) {
+				factories.add(new SslConnectionFactory(sslContextFactory, Http2Support.ALPN_PROTOCOL));
+				factories.add(alpn);
+				factories.add(h2);
+			} else {
+				factories.add(new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString()));
+			}
+			factories.add(new HttpConnectionFactory(httpConfiguration));
+		} else {
+			factories.add(new HttpConnectionFactory(httpConfiguration));
+			if(http2) {
+				ConnectionFactory h2c = Http2Support.newH2cConnectionFactory(httpConfiguration);
+				if(h2c != null) {
+					factories.add(h2c);
+				} else {
+					sLogger.warn("HTTP/2 could not be set up for HTTP transport [" + httpSettings.getName() + 
+							"]. Only HTTP/1.1 will be served.");
+				}
+			}
+		}
+		
+		ServerConnector connector = new ServerConnector(server, httpSettings.getAcceptors(), httpSettings.getSelectors(), 
+				factories.toArray(new ConnectionFactory[factories.size()]));
+		sLogger.debug("Connection protocols are " + connector.getProtocols() + ".");
+		connector.setPort(port);
+		connector.setIdleTimeout(TimeUnit.SECONDS.toMillis(httpSettings.getIdleTimeoutSeconds()));
+		connector.setAcceptQueueSize(httpSettings.getAcceptQueueSize());
+		return connector;
+	}
+	
+	private boolean isHttp2Available() {
+		if(!httpSettings.isHttp2Enabled()) {
+			return false;
+		}
+		
+		if(!Http2Support.isSupported()) {
+			sLogger.warn("HTTP/2 is enabled for HTTP transport [" + httpSettings.getName() + 
+					"], but the Jetty HTTP/2 server libraries are not available. Only HTTP/1.1 will be served.");
+			return false;
+		}
+		
+		if(httpSettings.isTlsEnabled() && !Http2Support.isAlpnSupported()) {
+			sLogger.warn("HTTP/2 is enabled for HTTP transport [" + httpSettings.getName() + 
+					"], but the Jetty ALPN server library is not available. Only HTTP/1.1 will be served over TLS.");
+			return false;
+		}
+		return true;
+	}
+	
+	/* The server key is taken from the keystore and partner certificates from the truststore */
+	private SslContextFactory createSslContextFactory() throws TransportException {
+		IServerConfigurationManager configurationManager = Factory.getInstance().getServerConfigurationManager();
+		Path keystoreFile = configurationManager.getKeystoreFile();
+		if(!Files.isReadable(keystoreFile)) {
+			throw new TransportException("TLS is enabled for HTTP transport [" + httpSettings.getName() + 
+					"], but keystore [" + keystoreFile + "] can't be read.");
+		}
+		
+		SslContextFactory sslContextFactory = new SessionCachingSslContextFactory(
+				httpSettings.getTlsSessionCacheSize(), httpSettings.getTlsSessionTimeoutSeconds());
+		sslContextFactory.setKeyStoreType(FactoryConstants.CERTIFICATE_MANAGER_JKS);
+		sslContextFactory.setKeyStorePath(keystoreFile.toString());
+		sslContextFactory.setKeyStorePassword(configurationManager.getKeystorePassword());
+		String keyPassword = httpSettings.getTlsKeyPassword();
+		sslContextFactory.setKeyManagerPassword(keyPassword == null ? configurationManager.getKeystorePassword() : keyPassword);
+		if(httpSettings.getTlsKeyAlias() != null) {
+			sslContextFactory.setCertAlias(httpSettings.getTlsKeyAlias());
+		}
+		
+		sslContextFactory.setTrustStoreType(FactoryConstants.CERTIFICATE_MANAGER_JKS);
+		sslContextFactory.setTrustStorePath(configurationManager.getTruststoreFile().toString());
+		sslContextFactory.setTrustStorePassword(configurationManager.getTruststorePassword());
+		sslContextFactory.setNeedClientAuth(httpSettings.isTlsClientAuth());
+		
+		/* Session tickets can only be switched for the whole JVM, so it's left alone unless configured */
+		String sessionTickets = httpSettings.getTlsSessionTickets();
+		if(sessionTickets != null) {
+			sLogger.debug("TLS session tickets are [" + sessionTickets + "].");
+			System.setProperty(TLS_SESSION_TICKETS_PROPERTY, sessionTickets);
+		}
+		return sslContextFactory;
 	}
 
 	@Override
@@ -75,4 +228,34 @@ public class HttpTransport extends BaseTransport {
 		}
 
 	}
+	
+	/**
+	 * Partners reconnecting within the session timeout resume their TLS session instead of 
+	 * going through a full handshake. Jetty keeps the session cache settings without applying 
+	 * them, so they are set on the server session context once the factory has started.
+	 */
+	private static class SessionCachingSslContextFactory extends SslContextFactory {
+		SessionCachingSslContextFactory(int sessionCacheSize, int sessionTimeoutSeconds) {
+			setSslSessionCacheSize(sessionCacheSize);
+			setSslSessionTimeout(sessionTimeoutSeconds);
+			addLifeCycleListener(new AbstractLifeCycleListener() {
+				@Override
+				public void lifeCycleStarted(LifeCycle event) {
+					applySessionSettings();
+				}
+			});
+		}
+		
+		private void applySessionSettings() {
+			SSLSessionContext sessionContext = getSslContext().getServerSessionContext();
+			if(getSslSessionCacheSize() >= 0) {
+				sessionContext.setSessionCacheSize(getSslSessionCacheSize());
+			}
+			if(getSslSessionTimeout() >= 0) {
+				sessionContext.setSessionTimeout(getSslSessionTimeout());
+			}
+			sLogger.debug("TLS sessions are cached up to [" + sessionContext.getSessionCacheSize() + 
+					"] for [" + sessionContext.getSessionTimeout() + "] seconds.");
+		}
+	}
 }
@@ -6,6 +6,31 @@ import org.redoubt.transport.SettingsHolder;
 public class HttpTransportSettings extends SettingsHolder implements ITransportSettings {
 	private static final long serialVersionUID = 5063476342919936607L;
 	public static final String TRANSPORT_NAME = "http";
+	
+	public HttpTransportSettings() {
+		//Set default values
+		put(HttpTransportSettingsKeyring.ASYNC_PROCESSING, Boolean.toString(false));
+		put(HttpTransportSettingsKeyring.PROCESSING_THREADS, Integer.toString(Runtime.getRuntime().availableProcessors()));
+		put(HttpTransportSettingsKeyring.ASYNC_TIMEOUT_SECONDS, Integer.toString(300));
+		put(HttpTransportSettingsKeyring.TLS_ENABLED, Boolean.toString(false));
+		put(HttpTransportSettingsKeyring.TLS_CLIENT_AUTH, Boolean.toString(false));
+		put(HttpTransportSettingsKeyring.MIN_THREADS, Integer.toString(8));
+		put(HttpTransportSettingsKeyring.MAX_THREADS, Integer.toString(200));
+		put(HttpTransportSettingsKeyring.THREAD_IDLE_TIMEOUT_SECONDS, Integer.toString(60));
+		put(HttpTransportSettingsKeyring.ACCEPTORS, Integer.toString(-1));
+		put(HttpTransportSettingsKeyring.SELECTORS, Integer.toString(-1));
+		put(HttpTransportSettingsKeyring.IDLE_TIMEOUT_SECONDS, Integer.toString(30));
+		put(HttpTransportSettingsKeyring.ACCEPT_QUEUE_SIZE, Integer.toString(0));
+		put(HttpTransportSettingsKeyring.REQUEST_HEADER_SIZE, Integer.toString(8 * 1024));
+		put(HttpTransportSettingsKeyring.RESPONSE_HEADER_SIZE, Integer.toString(8 * 1024));
+		put(HttpTransportSettingsKeyring.OUTPUT_BUFFER_SIZE, Integer.toString(32 * 1024));
+		put(HttpTransportSettingsKeyring.HTTP2_ENABLED, Boolean.toString(false));
+		put(HttpTransportSettingsKeyring.PARTNER_REQUESTS_PER_SECOND, Integer.toString(0));
+		put(HttpTransportSettingsKeyring.MAX_CONCURRENT_REQUESTS, Integer.toString(0));
+		put(HttpTransportSettingsKeyring.RETRY_AFTER_SECONDS, Integer.toString(5));
+		put(HttpTransportSettingsKeyring.TLS_SESSION_CACHE_SIZE, Integer.toString(-1));
+		put(HttpTransportSettingsKeyring.TLS_SESSION_TIMEOUT_SECONDS, Integer.toString(-1));
+	}
 
 	@Override
 	public String getTransportName() {
@@ -21,11 +46,249 @@ public class HttpTransportSettings extends SettingsHolder implements ITransportS
 	}
 
 	public boolean isTlsEnabled() {
-		return (boolean) get(HttpTransportSettingsKeyring.TLS_ENABLED);
+		return Boolean.parseBoolean((String) get(HttpTransportSettingsKeyring.TLS_ENABLED));
 	}
 
 	public void setTlsEnabled(boolean secure) {
-		put(HttpTransportSettingsKeyring.TLS_ENABLED, secure);
+		put(HttpTransportSettingsKeyring.TLS_ENABLED, Boolean.toString(secure));
+	}
+	
+	/**
+	 * @return the alias of the server key in the keystore, or null to let the TLS 
+	 * handshake pick one
+	 */
+	public String getTlsKeyAlias() {
+		return (String) get(HttpTransportSettingsKeyring.TLS_KEY_ALIAS);
+	}
+	
+	public void setTlsKeyAlias(String tlsKeyAlias) {
+		put(HttpTransportSettingsKeyring.TLS_KEY_ALIAS, tlsKeyAlias);
+	}
+	
+	/**
+	 * @return the password of the server key, the keystore password unless configured
+	 */
+	public String getTlsKeyPassword() {
+		return (String) get(HttpTransportSettingsKeyring.TLS_KEY_PASSWORD);
+	}
+	
+	public void setTlsKeyPassword(String tlsKeyPassword) {
+		put(HttpTransportSettingsKeyring.TLS_KEY_PASSWORD, tlsKeyPassword);
+	}
+	
+	/**
+	 * @return whether partners must present a certificate from the truststore
+	 */
+	public boolean isTlsClientAuth() {
+		return Boolean.parseBoolean((String) get(HttpTransportSettingsKeyring.TLS_CLIENT_AUTH));
+	}
+	
+	public void setTlsClientAuth(boolean tlsClientAuth) {
+		put(HttpTransportSettingsKeyring.TLS_CLIENT_AUTH, Boolean.toString(tlsClientAuth));
+	}
+	
+	/**
+	 * @return the number of TLS sessions kept for resumption, 0 for no limit, -1 for the JVM default
+	 */
+	public int getTlsSessionCacheSize() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.TLS_SESSION_CACHE_SIZE));
+	}
+	
+	public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+		put(HttpTransportSettingsKeyring.TLS_SESSION_CACHE_SIZE, Integer.toString(tlsSessionCacheSize));
+	}
+	
+	/**
+	 * @return how long a TLS session can be resumed, 0 for no limit, -1 for the JVM default
+	 */
+	public int getTlsSessionTimeoutSeconds() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.TLS_SESSION_TIMEOUT_SECONDS));
+	}
+	
+	public void setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+		put(HttpTransportSettingsKeyring.TLS_SESSION_TIMEOUT_SECONDS, Integer.toString(tlsSessionTimeoutSeconds));
+	}
+	
+	/**
+	 * @return "true" or "false" to switch stateless TLS session tickets for the JVM, 
+	 * null to keep the JVM default. Only JVMs from Java 13 on support them.
+	 */
+	public String getTlsSessionTickets() {
+		return (String) get(HttpTransportSettingsKeyring.TLS_SESSION_TICKETS);
+	}
+	
+	public void setTlsSessionTickets(boolean tlsSessionTickets) {
+		put(HttpTransportSettingsKeyring.TLS_SESSION_TICKETS, Boolean.toString(tlsSessionTickets));
+	}
+	
+	/**
+	 * @return whether HTTP/2 is served next to HTTP/1.1 - h2 over TLS, h2c otherwise. 
+	 * Needs the Jetty HTTP/2 libraries and, for h2, ALPN.
+	 */
+	public boolean isHttp2Enabled() {
+		return Boolean.parseBoolean((String) get(HttpTransportSettingsKeyring.HTTP2_ENABLED));
+	}
+	
+	public void setHttp2Enabled(boolean http2Enabled) {
+		put(HttpTransportSettingsKeyring.HTTP2_ENABLED, Boolean.toString(http2Enabled));
+	}
+	
+	/**
+	 * @return the sustained number of requests a single AS2-From partner may send per second, 
+	 * 0 for no limit. Unknown AS2-From names share this rate.
+	 */
+	public double getPartnerRequestsPerSecond() {
+		return Double.parseDouble((String) get(HttpTransportSettingsKeyring.PARTNER_REQUESTS_PER_SECOND));
+	}
+	
+	public void setPartnerRequestsPerSecond(double partnerRequestsPerSecond) {
+		put(HttpTransportSettingsKeyring.PARTNER_REQUESTS_PER_SECOND, Double.toString(partnerRequestsPerSecond));
+	}
+	
+	/**
+	 * @return the number of requests a partner may send at once after being quiet, 
+	 * one second's worth unless configured
+	 */
+	public int getPartnerBurst() {
+		String partnerBurst = (String) get(HttpTransportSettingsKeyring.PARTNER_BURST);
+		if(partnerBurst == null) {
+			return (int) Math.ceil(getPartnerRequestsPerSecond());
+		}
+		return Integer.parseInt(partnerBurst);
+	}
+	
+	public void setPartnerBurst(int partnerBurst) {
+		put(HttpTransportSettingsKeyring.PARTNER_BURST, Integer.toString(partnerBurst));
+	}
+	
+	/**
+	 * @return the number of requests received and processed at the same time by all 
+	 * partners together, 0 for no limit
+	 */
+	public int getMaxConcurrentRequests() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.MAX_CONCURRENT_REQUESTS));
+	}
+	
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		put(HttpTransportSettingsKeyring.MAX_CONCURRENT_REQUESTS, Integer.toString(maxConcurrentRequests));
+	}
+	
+	/**
+	 * @return the Retry-After sent with a request refused because the transport is busy
+	 */
+	public int getRetryAfterSeconds() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.RETRY_AFTER_SECONDS));
+	}
+	
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		put(HttpTransportSettingsKeyring.RETRY_AFTER_SECONDS, Integer.toString(retryAfterSeconds));
+	}
+	
+	public int getMinThreads() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.MIN_THREADS));
+	}
+	
+	public void setMinThreads(int minThreads) {
+		put(HttpTransportSettingsKeyring.MIN_THREADS, Integer.toString(minThreads));
+	}
+	
+	public int getMaxThreads() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.MAX_THREADS));
+	}
+	
+	public void setMaxThreads(int maxThreads) {
+		put(HttpTransportSettingsKeyring.MAX_THREADS, Integer.toString(maxThreads));
+	}
+	
+	/**
+	 * @return the number of jobs that may wait for a server thread, unbounded unless configured
+	 */
+	public int getMaxQueuedJobs() {
+		String maxQueuedJobs = (String) get(HttpTransportSettingsKeyring.MAX_QUEUED_JOBS);
+		if(maxQueuedJobs == null) {
+			return Integer.MAX_VALUE;
+		}
+		return Integer.parseInt(maxQueuedJobs);
+	}
+	
+	public void setMaxQueuedJobs(int maxQueuedJobs) {
+		put(HttpTransportSettingsKeyring.MAX_QUEUED_JOBS, Integer.toString(maxQueuedJobs));
+	}
+	
+	public int getThreadIdleTimeoutSeconds() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.THREAD_IDLE_TIMEOUT_SECONDS));
+	}
+	
+	public void setThreadIdleTimeoutSeconds(int threadIdleTimeoutSeconds) {
+		put(HttpTransportSettingsKeyring.THREAD_IDLE_TIMEOUT_SECONDS, Integer.toString(threadIdleTimeoutSeconds));
+	}
+	
+	/**
+	 * @return the number of acceptor threads, -1 to let Jetty size them from the processors
+	 */
+	public int getAcceptors() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.ACCEPTORS));
+	}
+	
+	public void setAcceptors(int acceptors) {
+		put(HttpTransportSettingsKeyring.ACCEPTORS, Integer.toString(acceptors));
+	}
+	
+	/**
+	 * @return the number of selector threads, -1 to let Jetty size them from the processors
+	 */
+	public int getSelectors() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.SELECTORS));
+	}
+	
+	public void setSelectors(int selectors) {
+		put(HttpTransportSettingsKeyring.SELECTORS, Integer.toString(selectors));
+	}
+	
+	/**
+	 * @return how long a connection may stay idle before it is closed
+	 */
+	public int getIdleTimeoutSeconds() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.IDLE_TIMEOUT_SECONDS));
+	}
+	
+	public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+		put(HttpTransportSettingsKeyring.IDLE_TIMEOUT_SECONDS, Integer.toString(idleTimeoutSeconds));
+	}
+	
+	/**
+	 * @return the backlog of connections not yet accepted, 0 for the operating system default
+	 */
+	public int getAcceptQueueSize() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.ACCEPT_QUEUE_SIZE));
+	}
+	
+	public void setAcceptQueueSize(int acceptQueueSize) {
+		put(HttpTransportSettingsKeyring.ACCEPT_QUEUE_SIZE, Integer.toString(acceptQueueSize));
+	}
+	
+	public int getRequestHeaderSize() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.REQUEST_HEADER_SIZE));
+	}
+	
+	public void setRequestHeaderSize(int requestHeaderSize) {
+		put(HttpTransportSettingsKeyring.REQUEST_HEADER_SIZE, Integer.toString(requestHeaderSize));
+	}
+	
+	public int getResponseHeaderSize() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.RESPONSE_HEADER_SIZE));
+	}
+	
+	public void setResponseHeaderSize(int responseHeaderSize) {
+		put(HttpTransportSettingsKeyring.RESPONSE_HEADER_SIZE, Integer.toString(responseHeaderSize));
+	}
+	
+	public int getOutputBufferSize() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.OUTPUT_BUFFER_SIZE));
+	}
+	
+	public void setOutputBufferSize(int outputBufferSize) {
+		put(HttpTransportSettingsKeyring.OUTPUT_BUFFER_SIZE, Integer.toString(outputBufferSize));
 	}
 	
 	public String getContextPath() {
@@ -44,10 +307,89 @@ public class HttpTransportSettings extends SettingsHolder implements ITransportS
 		put(HttpTransportSettingsKeyring.NAME, name);
 	}
 	
+	/**
+	 * @return whether requests are read without blocking and processed on a separate pool of 
+	 * threads, instead of on the thread serving the connection
+	 */
+	public boolean isAsyncProcessing() {
+		return Boolean.parseBoolean((String) get(HttpTransportSettingsKeyring.ASYNC_PROCESSING));
+	}
+	
+	public void setAsyncProcessing(boolean asyncProcessing) {
+		put(HttpTransportSettingsKeyring.ASYNC_PROCESSING, Boolean.toString(asyncProcessing));
+	}
+	
+	/**
+	 * @return the number of requests processed in parallel in asynchronous mode, 
+	 * the number of processors unless configured
+	 */
+	public int getProcessingThreads() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.PROCESSING_THREADS));
+	}
+	
+	public void setProcessingThreads(int processingThreads) {
+		put(HttpTransportSettingsKeyring.PROCESSING_THREADS, Integer.toString(processingThreads));
+	}
+	
+	/**
+	 * @return the number of received requests that may wait for a processing thread, 
+	 * four times the number of threads unless configured. Further requests are refused 
+	 * until there is room again. On virtual threads, the number of requests processed at once.
+	 */
+	public int getMaxQueuedRequests() {
+		String maxQueuedRequests = (String) get(HttpTransportSettingsKeyring.MAX_QUEUED_REQUESTS);
+		if(maxQueuedRequests == null) {
+			return getProcessingThreads() * 4;
+		}
+		return Integer.parseInt(maxQueuedRequests);
+	}
+	
+	public void setMaxQueuedRequests(int maxQueuedRequests) {
+		put(HttpTransportSettingsKeyring.MAX_QUEUED_REQUESTS, Integer.toString(maxQueuedRequests));
+	}
+	
+	/**
+	 * @return how long a request may take to be read and taken up for processing in
+	 * asynchronous mode. A request that is being processed is always answered.
+	 */
+	public int getAsyncTimeoutSeconds() {
+		return Integer.parseInt((String) get(HttpTransportSettingsKeyring.ASYNC_TIMEOUT_SECONDS));
+	}
+	
+	public void setAsyncTimeoutSeconds(int asyncTimeoutSeconds) {
+		put(HttpTransportSettingsKeyring.ASYNC_TIMEOUT_SECONDS, Integer.toString(asyncTimeoutSeconds));
+	}
+	
 	public class HttpTransportSettingsKeyring {
 		public static final String PORT = "port";
 		public static final String TLS_ENABLED = "tlsEnabled";
 		public static final String CONTEXT_PATH = "contextPath";
 		public static final String NAME = "name";
+		public static final String ASYNC_PROCESSING = "asyncProcessing";
+		public static final String PROCESSING_THREADS = "processingThreads";
+		public static final String MAX_QUEUED_REQUESTS = "maxQueuedRequests";
+		public static final String ASYNC_TIMEOUT_SECONDS = "asyncTimeoutSeconds";
+		public static final String TLS_KEY_ALIAS = "tlsKeyAlias";
+		public static final String TLS_KEY_PASSWORD = "tlsKeyPassword";
+		public static final String TLS_CLIENT_AUTH = "tlsClientAuth";
+		public static final String MIN_THREADS = "minThreads";
+		public static final String MAX_THREADS = "maxThreads";
+		public static final String MAX_QUEUED_JOBS = "maxQueuedJobs";
+		public static final String THREAD_IDLE_TIMEOUT_SECONDS = "threadIdleTimeoutSeconds";
+		public static final String ACCEPTORS = "acceptors";
+		public static final String SELECTORS = "selectors";
+		public static final String IDLE_TIMEOUT_SECONDS = "idleTimeoutSeconds";
+		public static final String ACCEPT_QUEUE_SIZE = "acceptQueueSize";
+		public static final String REQUEST_HEADER_SIZE = "requestHeaderSize";
+		public static final String RESPONSE_HEADER_SIZE = "responseHeaderSize";
+		public static final String OUTPUT_BUFFER_SIZE = "outputBufferSize";
+		public static final String HTTP2_ENABLED = "http2Enabled";
+		public static final String TLS_SESSION_CACHE_SIZE = "tlsSessionCacheSize";
+		public static final String TLS_SESSION_TIMEOUT_SECONDS = "tlsSessionTimeoutSeconds";
+		public static final String TLS_SESSION_TICKETS = "tlsSessionTickets";
+		public static final String PARTNER_REQUESTS_PER_SECOND = "partnerRequestsPerSecond";
+		public static final String PARTNER_BURST = "partnerBurst";
+		public static final String MAX_CONCURRENT_REQUESTS = "maxConcurrentRequests";
+		public static final String RETRY_AFTER_SECONDS = "retryAfterSeconds";
 	}
 }
@@ -0,0 +1,99 @@
+package org.redoubt.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A MIME body part whose (already encoded) content lives in a file on disk. The
+ * content is exposed through a {@link SharedFileInputStream}, so JavaMail reads
+ * it - and any multipart nested inside it - as ranges of the file instead of
+ * copying it onto the heap.
+ */
+public class FileMimeBodyPart extends MimeBodyPart implements Closeable {
+	private static final Logger sLogger = Logger.getLogger(FileMimeBodyPart.class);
+
+	private Path file;
+	private boolean deleteOnClose;
+	private SharedFileInputStream sharedStream;
+
+	public FileMimeBodyPart(InternetHeaders internetHeaders, Path file) throws IOException {
+		this(internetHeaders, file, false);
+	}
+
+	/**
+	 * @param internetHeaders the headers of the part, the file holds only the content
+	 * @param file the content of the part
+	 * @param deleteOnClose whether the file is a temporary one, owned by this part
+	 */
+	public FileMimeBodyPart(InternetHeaders internetHeaders, Path file, boolean deleteOnClose) throws IOException {
+		super();
+
+		if(internetHeaders != null) {
+			headers = internetHeaders;
+		}
+
+		this.file = file;
+		this.deleteOnClose = deleteOnClose;
+		sharedStream = new SharedFileInputStream(file.toFile());
+		contentStream = sharedStream;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public boolean isTemporary() {
+		return deleteOnClose;
+	}
+
+	/**
+	 * Releases the part and hands its file over to the target. The part can't be
+	 * read afterwards.
+	 */
+	public void moveFile(Path target) throws IOException {
+		deleteOnClose = false;
+		close();
+		Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+		file = target;
+	}
+
+	@Override
+	public int getSize() throws MessagingException {
+		try {
+			return (int) Math.min(Files.size(file), Integer.MAX_VALUE);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Releases the file handle and removes the file if it is owned by this part.
+	 */
+	@Override
+	public void close() {
+		if(sharedStream == null) {
+			return;
+		}
+
+		try {
+			sharedStream.close();
+		} catch (IOException e) {
+			sLogger.error("Error while closing file [" + file.toString() + "]. " + e.getMessage(), e);
+		}
+		sharedStream = null;
+
+		if(deleteOnClose) {
+			FileSystemUtils.removeWorkFile(file);
+		}
+	}
+}
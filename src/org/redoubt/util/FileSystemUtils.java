@@ -3,10 +3,14 @@ package org.redoubt.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
@@ -15,6 +19,7 @@ import org.redoubt.api.factory.Factory;
 
 public class FileSystemUtils {
     private static final Logger sLogger = Logger.getLogger(FileSystemUtils.class);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
     
     private FileSystemUtils() {}
     
@@ -34,7 +39,7 @@ public class FileSystemUtils {
         
         try {
             Path backupFile = Paths.get(backupFolder.toString(), generateUniqueFileName());
-            Files.copy(file, backupFile);
+            copyFile(file, backupFile);
             sLogger.info("The file [" + file.toString() + "] has been backed up as [" + backupFile.toString() + "].");
         } catch(Exception e) {
             sLogger.error("An error has occured while backing up file [" + file.toString() + "]. " + e.getMessage(), e);
@@ -112,12 +117,48 @@ public class FileSystemUtils {
     	return true;
     }
     
+    /**
+     * Copies a file within the kernel where the platform allows it.
+     */
+    public static void copyFile(Path source, Path target) throws IOException {
+    	try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+    			FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+    		long size = in.size();
+    		long position = 0;
+    		while(position < size) {
+    			position += in.transferTo(position, size - position, out);
+    		}
+    	}
+    }
+    
     public static void copyFileToStream(Path workFile, OutputStream out) throws IOException {
 		Files.copy(workFile, out);
 		out.flush();
     }
     
+    /**
+     * Writes the stream to a new file. The stream is read through a buffer, so inbound 
+     * requests are copied - there is no zero-copy path from a servlet stream.
+     */
     public static void copyStreamToFile(InputStream in, Path workFile) throws IOException {
-		Files.copy(in, workFile);
+    	ReadableByteChannel source = Channels.newChannel(in);
+    	try (FileChannel out = FileChannel.open(workFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+    		long position = 0;
+    		long transferred;
+    		while((transferred = out.transferFrom(source, position, COPY_BUFFER_SIZE)) > 0) {
+    			position += transferred;
+    		}
+    	}
+    }
+    
+    public static long copyStreamToStream(InputStream in, OutputStream out) throws IOException {
+    	byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    	long total = 0;
+    	int read;
+    	while((read = in.read(buffer)) != -1) {
+    		out.write(buffer, 0, read);
+    		total += read;
+    	}
+    	return total;
     }
 }
@@ -0,0 +1,74 @@
+package org.redoubt.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Digests everything that is written through it, so the MIC of a message can be
+ * calculated in the same pass that writes it. Without a target stream the data is
+ * only digested.
+ */
+public class MicOutputStream extends FilterOutputStream {
+	private MessageDigest digest;
+	private String micAlgorithm;
+	private String mic;
+
+	/**
+	 * @param out the stream the data is passed on to, may be null
+	 * @param digest the digest that backs the MIC
+	 * @param micAlgorithm the algorithm name, as it appears in the MIC
+	 */
+	public MicOutputStream(OutputStream out, MessageDigest digest, String micAlgorithm) {
+		super(out);
+		this.digest = digest;
+		this.micAlgorithm = micAlgorithm;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		digest.update((byte) b);
+		if(out != null) {
+			out.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		digest.update(b, off, len);
+		if(out != null) {
+			out.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(out != null) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(out != null) {
+			out.close();
+		}
+	}
+
+	/**
+	 * Completes the digest - nothing written afterwards is taken into account.
+	 * @return the MIC in the form used by the Received-content-MIC field
+	 */
+	public String getMic() {
+		if(mic == null) {
+			mic = formatMic(digest.digest(), micAlgorithm);
+		}
+		return mic;
+	}
+
+	public static String formatMic(byte[] digest, String micAlgorithm) {
+		return Base64.getEncoder().encodeToString(digest) + ", " + micAlgorithm;
+	}
+}
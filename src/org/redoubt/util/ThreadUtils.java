@@ -0,0 +1,47 @@
+package org.redoubt.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+public class ThreadUtils {
+	private static final Logger sLogger = Logger.getLogger(ThreadUtils.class);
+
+	private ThreadUtils() {}
+
+	public static boolean isVirtualThreadsSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an executor that runs every task on a new virtual thread. The build targets
+	 * Java 8, so the Java 21 API is looked up at runtime.
+	 * @return the executor or null, if the running JVM has no virtual threads
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+		if(!isVirtualThreadsSupported()) {
+			return null;
+		}
+
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		} catch (Exception e) {
+			sLogger.warn("Unable to create a virtual thread executor. " + e.getMessage(), e);
+			return null;
+		}
+	}
+}